@@ -18,19 +18,49 @@
  */
 package org.jclouds.karaf.cache;
 
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.compute.ComputeService;
+import org.jclouds.karaf.cache.management.CacheMetrics;
+import org.jclouds.karaf.cache.management.CacheStats;
+import org.jclouds.karaf.cache.management.CacheStatsMXBean;
+import org.jclouds.karaf.cache.utils.CachePersistence;
 import org.jclouds.karaf.cache.utils.CacheUtils;
+import org.jclouds.karaf.core.ComputeNodeListener;
+import org.jclouds.karaf.core.NodeListener;
 import org.jclouds.karaf.recipe.RecipeProvider;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.cm.ManagedService;
 import org.osgi.util.tracker.ServiceTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class Activator implements BundleActivator {
 
+     private static final Logger LOGGER = LoggerFactory.getLogger(Activator.class);
+
+     //How often the caches are saved, so that a crash leaves a recent snapshot behind.
+     private static final long SNAPSHOT_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+     //How long the services get to come back before the values restored for the missing ones are dropped.
+     private static final long RECONCILE_DELAY = TimeUnit.MINUTES.toMillis(10);
+
      private ServiceTracker computeServiceTracker;
      private ServiceTracker computeCacheableTracker;
 
@@ -40,7 +70,20 @@ public class Activator implements BundleActivator {
      private ServiceTracker recipeProviderTracker;
      private ServiceTracker recipeCacheableTracker;
 
+     private ServiceTracker cacheRefresherTracker;
+     private ScheduledExecutorService snapshotExecutor;
+     private volatile Map<String, Set<String>> restoredKeys;
+
      private ServiceRegistration cacheProviderRegistration;
+     private ServiceRegistration nodeListenerRegistration;
+     private ServiceRegistration statsRegistration;
+     private ServiceRegistration refreshLimitsRegistration;
+     private ServiceRegistration computeRefresherRegistration;
+     private ServiceRegistration blobRefresherRegistration;
+     private ServiceRegistration recipeRefresherRegistration;
+     private BoundedCacheProvider cacheProvider;
+     private File snapshotFile;
+     private ObjectName statsName;
 
      private final CacheManager<ComputeService> computeCacheManager = new CacheManager<ComputeService>();
      private final CacheManager<BlobStore> blobCacheManager = new CacheManager<BlobStore>();
@@ -65,8 +108,34 @@ public class Activator implements BundleActivator {
      */
     @Override
     public void start(BundleContext context) throws Exception {
-        CacheProvider cacheProvider = new BasicCacheProvider();
-        cacheProviderRegistration = context.registerService(CacheProvider.class.getName(), cacheProvider, new Properties());
+        cacheProvider = new BoundedCacheProvider();
+        //Load the last snapshot before the trackers trigger the first refresh, which then only applies the delta.
+        snapshotFile = CachePersistence.getDefaultFile();
+        int loaded = CachePersistence.load(snapshotFile, cacheProvider);
+        if (loaded > 0) {
+            LOGGER.debug("Loaded {} cached values from {}.", loaded, snapshotFile);
+            Map<String, Set<String>> keys = new HashMap<String, Set<String>>();
+            for (Map.Entry<String, Multimap<String, String>> entry : cacheProvider.getCaches().entrySet()) {
+                keys.put(entry.getKey(), new HashSet<String>(entry.getValue().keySet()));
+            }
+            restoredKeys = keys;
+        }
+
+        Properties cacheProviderProperties = new Properties();
+        cacheProviderProperties.put(Constants.SERVICE_PID, BoundedCacheProvider.PID);
+        cacheProviderRegistration = context.registerService(new String[]{CacheProvider.class.getName(), ManagedService.class.getName()},
+                cacheProvider, cacheProviderProperties);
+        Properties refreshLimitsProperties = new Properties();
+        refreshLimitsProperties.put(Constants.SERVICE_PID, RefreshLimits.PID);
+        refreshLimitsRegistration = context.registerService(ManagedService.class.getName(), RefreshLimits.getInstance(), refreshLimitsProperties);
+        nodeListenerRegistration = context.registerService(new String[]{NodeListener.class.getName(), ComputeNodeListener.class.getName()},
+                new NodeCacheListener(cacheProvider), null);
+        CacheStats stats = new CacheStats(cacheProvider, CacheMetrics.getInstance());
+        statsRegistration = context.registerService(CacheStatsMXBean.class.getName(), stats, null);
+        registerStats(stats);
+        computeRefresherRegistration = registerRefresher(context, "jclouds.computeservice", computeCacheManager);
+        blobRefresherRegistration = registerRefresher(context, "jclouds.blobstore", blobCacheManager);
+        recipeRefresherRegistration = registerRefresher(context, "jclouds.recipeprovider", recipeCacheManager);
 
         computeServiceTracker = CacheUtils.createServiceCacheTracker(context, ComputeService.class, computeCacheManager);
         computeCacheableTracker = CacheUtils.createCacheableTracker(context, "jclouds.computeservice",computeCacheManager);
@@ -86,10 +155,25 @@ public class Activator implements BundleActivator {
         recipeProviderTracker.open();
         recipeCacheableTracker.open();
 
-        computeCacheManager.init();
-        blobCacheManager.init();
-        recipeCacheManager.init();
+        cacheRefresherTracker = new ServiceTracker(context, CacheRefresher.class.getName(), null);
+        cacheRefresherTracker.open();
 
+        if (snapshotFile != null) {
+            snapshotExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("jclouds-cache-snapshot").setDaemon(true).build());
+            snapshotExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    saveSnapshot();
+                }
+            }, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.MILLISECONDS);
+            snapshotExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    dropRestoredKeys();
+                }
+            }, RECONCILE_DELAY, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
@@ -115,6 +199,34 @@ public class Activator implements BundleActivator {
         blobCacheManager.destroy();
         recipeCacheManager.destroy();
 
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdownNow();
+            snapshotExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        //Restored values that were not reconciled yet are saved as they are, the services may be shutting down.
+        saveSnapshot();
+        if (cacheRefresherTracker != null) {
+            cacheRefresherTracker.close();
+        }
+        unregisterStats();
+        if (computeRefresherRegistration != null) {
+            computeRefresherRegistration.unregister();
+        }
+        if (blobRefresherRegistration != null) {
+            blobRefresherRegistration.unregister();
+        }
+        if (recipeRefresherRegistration != null) {
+            recipeRefresherRegistration.unregister();
+        }
+        if (statsRegistration != null) {
+            statsRegistration.unregister();
+        }
+        if (refreshLimitsRegistration != null) {
+            refreshLimitsRegistration.unregister();
+        }
+        if (nodeListenerRegistration != null) {
+            nodeListenerRegistration.unregister();
+        }
         if (cacheProviderRegistration != null) {
             cacheProviderRegistration.unregister();
         }
@@ -137,4 +249,72 @@ public class Activator implements BundleActivator {
             recipeCacheableTracker.close();
         }
     }
+
+    private synchronized void saveSnapshot() {
+        if (cacheProvider != null && snapshotFile != null) {
+            try {
+                CachePersistence.save(snapshotFile, cacheProvider.getCaches());
+            } catch (Exception ex) {
+                LOGGER.warn("Error while saving cache snapshot " + snapshotFile + ":" + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Removes the values that were restored from the snapshot for keys that no bound service uses,
+     * e.g. for a context that has been deleted while the container was down. No refresh ever updates those.
+     */
+    private synchronized void dropRestoredKeys() {
+        Map<String, Set<String>> keys = restoredKeys;
+        restoredKeys = null;
+        if (keys == null || cacheRefresherTracker == null) {
+            return;
+        }
+        Set<String> liveKeys = new HashSet<String>();
+        Object[] refreshers = cacheRefresherTracker.getServices();
+        if (refreshers != null) {
+            for (Object refresher : refreshers) {
+                liveKeys.addAll(((CacheRefresher) refresher).getCacheKeys());
+            }
+        }
+        for (Map.Entry<String, Set<String>> entry : keys.entrySet()) {
+            Multimap<String, String> cache = cacheProvider.getProviderCacheForType(entry.getKey());
+            for (String key : entry.getValue()) {
+                if (!liveKeys.contains(key)) {
+                    LOGGER.debug("Dropping the {} values restored for {}, no service uses them.", entry.getKey(), key);
+                    cache.removeAll(key);
+                }
+            }
+        }
+    }
+
+    private ServiceRegistration registerRefresher(BundleContext context, String type, CacheManager<?> cacheManager) {
+        Properties properties = new Properties();
+        properties.put(CacheUtils.CACHE_TYPE, type);
+        return context.registerService(CacheRefresher.class.getName(), cacheManager, properties);
+    }
+
+    private void registerStats(CacheStats stats) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(CacheStatsMXBean.OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(stats, name);
+                statsName = name;
+            }
+        } catch (Exception ex) {
+            LOGGER.warn("Error while registering cache stats MBean:" + ex.getMessage());
+        }
+    }
+
+    private void unregisterStats() {
+        if (statsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(statsName);
+            } catch (Exception ex) {
+                LOGGER.warn("Error while unregistering cache stats MBean:" + ex.getMessage());
+            }
+            statsName = null;
+        }
+    }
 }
@@ -0,0 +1,112 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jclouds.karaf.cache;
+
+import com.google.common.cache.CacheBuilderSpec;
+import com.google.common.collect.Multimap;
+import org.osgi.service.cm.ConfigurationException;
+import org.osgi.service.cm.ManagedService;
+
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link CacheProvider} that bounds the size and the lifetime of the cached values per cache type.
+ * Each cache type is configured through Config Admin with a {@link CacheBuilderSpec}, using the type as the key
+ * and falling back to the "default" key, e.g.:
+ *
+ * default=maximumSize=100000
+ * blob=maximumSize=10000,expireAfterAccess=1h
+ *
+ * Cache types without any configuration are unbounded. Their caches hold no eviction state, but are still created as
+ * {@link EvictingSetMultimap}s, because the completers keep the cache they were given and a configuration may arrive
+ * (or change) after the caches have been created, e.g. by loading the last snapshot.
+ */
+public class BoundedCacheProvider extends ConcurrentCacheProvider implements ManagedService {
+
+    public static final String PID = "org.jclouds.cache";
+    public static final String DEFAULT_SPEC = "default";
+
+    private final Map<String, CacheBuilderSpec> specs = new ConcurrentHashMap<String, CacheBuilderSpec>();
+
+    @Override
+    protected Multimap<String, String> createCache(String type) {
+        return new EvictingSetMultimap<String, String>(getSpec(type));
+    }
+
+    /**
+     * Update the configuration for a Managed Service.
+     * The new specs are applied to the caches that already exist.
+     *
+     * @param properties A copy of the Configuration properties, or
+     *                   <code>null</code>.
+     * @throws ConfigurationException when a value is not a valid {@link CacheBuilderSpec}.
+     */
+    @Override
+    public synchronized void updated(Dictionary properties) throws ConfigurationException {
+        Map<String, CacheBuilderSpec> newSpecs = new ConcurrentHashMap<String, CacheBuilderSpec>();
+        if (properties != null) {
+            for (Enumeration keys = properties.keys(); keys.hasMoreElements(); ) {
+                Object key = keys.nextElement();
+                Object value = properties.get(key);
+                //Skip framework properties like service.pid or felix.fileinstall.filename.
+                if (!(key instanceof String) || !(value instanceof String) || ((String) key).contains(".")) {
+                    continue;
+                }
+                try {
+                    newSpecs.put((String) key, CacheBuilderSpec.parse((String) value));
+                } catch (IllegalArgumentException ex) {
+                    throw new ConfigurationException((String) key, ex.getMessage(), ex);
+                }
+            }
+        }
+        specs.clear();
+        specs.putAll(newSpecs);
+
+        for (Map.Entry<String, Multimap<String, String>> entry : getCaches().entrySet()) {
+            if (entry.getValue() instanceof EvictingSetMultimap) {
+                ((EvictingSetMultimap) entry.getValue()).configure(getSpec(entry.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Returns the number of values that have been evicted from the cache of the specified type.
+     * @param type
+     * @return
+     */
+    public long getEvictionCount(String type) {
+        Multimap<String, String> cache = getCaches().get(type);
+        if (cache instanceof EvictingSetMultimap) {
+            return ((EvictingSetMultimap) cache).getEvictionCount();
+        }
+        return 0;
+    }
+
+    private CacheBuilderSpec getSpec(String type) {
+        CacheBuilderSpec spec = specs.get(type);
+        if (spec == null) {
+            spec = specs.get(DEFAULT_SPEC);
+        }
+        return spec != null ? spec : CacheBuilderSpec.parse("");
+    }
+}
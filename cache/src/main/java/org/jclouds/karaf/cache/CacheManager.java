@@ -19,65 +19,202 @@
 
 package org.jclouds.karaf.cache;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.jclouds.karaf.cache.tasks.UpdateCachesTask;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import static org.jclouds.karaf.utils.ServiceHelper.findCacheKeysForService;
 import static org.jclouds.karaf.utils.ServiceHelper.toId;
+import static org.jclouds.karaf.utils.ServiceHelper.toName;
 
-public class CacheManager<T> implements Runnable {
+/**
+ * Keeps the caches of the bound {@link Cacheable}s up to date for the bound services.
+ * The caches are refreshed as soon as a service and a cacheable are both bound and from then on each on its own
+ * adaptive schedule.
+ */
+public class CacheManager<T> implements CacheRefresher {
+
+    public static final int DEFAULT_POOL_SIZE = 8;
+    public static final int DEFAULT_MAX_TASKS_PER_PROVIDER = 2;
+    public static final long DEFAULT_TASK_TIMEOUT = TimeUnit.MINUTES.toMillis(3);
 
     protected ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
-    protected final List<Cacheable<T>> cacheables = new LinkedList<Cacheable<T>> ();
-    protected final Map<String, T> services = new HashMap<String, T>();
+    protected final List<Cacheable<T>> cacheables = new CopyOnWriteArrayList<Cacheable<T>>();
+    protected final Map<String, T> services = new ConcurrentHashMap<String, T>();
+    //The completer type of each cacheable, used to pick the cacheables to refresh on demand.
+    protected final Map<Cacheable<T>, String> cacheableTypes = new ConcurrentHashMap<Cacheable<T>, String>();
 
-    private UpdateCachesTask updatesCachesTask;
+    private final RefreshEngine<T> refreshEngine;
+    private final RefreshScheduler<T> refreshScheduler;
 
-    public void init() {
-      scheduledExecutorService.scheduleAtFixedRate(this,0,5, TimeUnit.MINUTES);
+    public CacheManager() {
+        this(DEFAULT_POOL_SIZE, DEFAULT_MAX_TASKS_PER_PROVIDER, DEFAULT_TASK_TIMEOUT);
     }
-    public void destroy() {
-      if (updatesCachesTask != null) {
-        updatesCachesTask.stop();
-      }
-      scheduledExecutorService.shutdownNow();
+
+    /**
+     * Constructor
+     *
+     * @param poolSize             the number of threads that update caches concurrently.
+     * @param maxTasksPerProvider  the maximum number of concurrent updates against a single provider.
+     * @param taskTimeout          the time in milliseconds after which a single cache update is cancelled.
+     */
+    public CacheManager(int poolSize, int maxTasksPerProvider, long taskTimeout) {
+        this.refreshEngine = new RefreshEngine<T>(poolSize, maxTasksPerProvider, taskTimeout, scheduledExecutorService);
+        this.refreshScheduler = new RefreshScheduler<T>(refreshEngine, scheduledExecutorService);
     }
 
-    @Override
-    public void run() {
-        //Update all cacheables for all services.
-        this.updatesCachesTask = new UpdateCachesTask(cacheables,services);
-        this.updatesCachesTask.run();
+    public void destroy() {
+        refreshScheduler.shutdown();
+        refreshEngine.shutdown();
+        scheduledExecutorService.shutdownNow();
     }
 
     public void bindService(T service) {
         Map<String, T> map = new HashMap<String, T>();
         map.put(toId(service), service);
         services.putAll(map);
-        scheduledExecutorService.submit(new UpdateCachesTask(cacheables, map));
+        new UpdateCachesTask<T>(cacheables, map, refreshScheduler).run();
     }
 
     public void unbindService(T service) {
         if (services != null && service != null) {
             this.services.remove(toId(service));
+            refreshScheduler.cancel(service);
+            refreshEngine.cancel(service);
+        }
+    }
+
+    @Override
+    public List<RefreshResult> refreshNow(String type, String id, long timeout) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        List<Request> requests = new ArrayList<Request>();
+        for (T service : services.values()) {
+            if (id != null && !findCacheKeysForService(service).contains(id)) {
+                continue;
+            }
+            String serviceName = toName(service) != null ? toName(service) : toId(service);
+            for (Cacheable<T> cacheable : cacheables) {
+                String cacheableType = typeOf(cacheable);
+                if (type == null || type.equals(cacheableType)) {
+                    if (cacheable instanceof LazyCacheable) {
+                        ((LazyCacheable<T>) cacheable).markDemanded();
+                    }
+                    requests.add(new Request(serviceName, cacheableType, refreshEngine.submit(service, cacheable, true)));
+                }
+            }
+        }
+
+        List<RefreshResult> results = new ArrayList<RefreshResult>();
+        long deadline = start + timeout;
+        for (Request request : requests) {
+            int changes = 0;
+            String error = null;
+            try {
+                changes = request.future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (changes == LazyCacheable.DEFERRED) {
+                    changes = 0;
+                    error = "deferred";
+                }
+            } catch (ExecutionException e) {
+                error = String.valueOf(e.getCause().getMessage());
+            } catch (CancellationException e) {
+                error = "cancelled";
+            } catch (TimeoutException e) {
+                error = "timed out";
+            }
+            long duration = request.completed > 0 ? Math.max(0, request.completed - start) : -1;
+            results.add(new RefreshResult(request.service, request.type, changes, duration, error));
+        }
+        return results;
+    }
+
+    @Override
+    public Set<String> getCacheKeys() {
+        Set<String> keys = new HashSet<String>();
+        for (T service : services.values()) {
+            keys.addAll(findCacheKeysForService(service));
         }
+        return keys;
+    }
+
+    private String typeOf(Cacheable<T> cacheable) {
+        String type = cacheableTypes.get(cacheable);
+        return type != null ? type : cacheable.getClass().getSimpleName();
     }
 
     public void bindCacheable(Cacheable<T> cacheable) {
+        bindCacheable(cacheable, null);
+    }
+
+    /**
+     * Binds a {@link Cacheable}.
+     * @param cacheable
+     * @param type      the completer type of the cacheable or null if it has none.
+     */
+    public void bindCacheable(final Cacheable<T> cacheable, String type) {
+        if (type != null) {
+            this.cacheableTypes.put(cacheable, type);
+        }
         this.cacheables.add(cacheable);
-        scheduledExecutorService.submit(new UpdateCachesTask(Arrays.asList(cacheable), services));
+        if (cacheable instanceof LazyCacheable) {
+            ((LazyCacheable<T>) cacheable).setRefreshTrigger(new Runnable() {
+                @Override
+                public void run() {
+                    new UpdateCachesTask<T>(Arrays.asList(cacheable), services, refreshScheduler).run();
+                }
+            });
+        }
+        new UpdateCachesTask<T>(Arrays.asList(cacheable), services, refreshScheduler).run();
     }
 
     public void unbindCacheable(Cacheable<T> cacheable) {
         if (cacheables != null) {
             this.cacheables.remove(cacheable);
+            this.cacheableTypes.remove(cacheable);
+            if (cacheable instanceof LazyCacheable) {
+                ((LazyCacheable<T>) cacheable).setRefreshTrigger(null);
+            }
+            refreshScheduler.cancel(cacheable);
+            refreshEngine.cancel(cacheable);
+        }
+    }
+
+    /**
+     * An on demand refresh that records when it completed.
+     */
+    private static class Request implements Runnable {
+
+        private final String service;
+        private final String type;
+        private final ListenableFuture<Integer> future;
+        private volatile long completed;
+
+        private Request(String service, String type, ListenableFuture<Integer> future) {
+            this.service = service;
+            this.type = type;
+            this.future = future;
+            future.addListener(this, MoreExecutors.sameThreadExecutor());
+        }
+
+        @Override
+        public void run() {
+            completed = System.currentTimeMillis();
         }
     }
 }
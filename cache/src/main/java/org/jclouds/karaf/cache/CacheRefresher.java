@@ -0,0 +1,45 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jclouds.karaf.cache;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Refreshes caches on demand, ahead of the background refreshes.
+ */
+public interface CacheRefresher {
+
+    /**
+     * Refreshes the caches of the matching cacheables and services as priority updates and waits for them.
+     * @param type    the completer type of the cacheables to refresh (e.g. image) or null for all.
+     * @param id      the context name or the provider / api of the services to refresh or null for all.
+     * @param timeout the maximum time in milliseconds to wait for the refreshes.
+     * @return the outcome of each refresh.
+     * @throws InterruptedException
+     */
+    List<RefreshResult> refreshNow(String type, String id, long timeout) throws InterruptedException;
+
+    /**
+     * Returns the keys that the caches use for the services that are currently bound (context names and providers / apis).
+     * @return
+     */
+    Set<String> getCacheKeys();
+}
@@ -19,9 +19,26 @@
 
 package org.jclouds.karaf.cache;
 
+import java.util.Set;
+
 public interface Cacheable<S>  {
 
     public void updateOnAdded(S service);
     public void updateOnRemoved(S service);
 
+    /**
+     * Returns a fresh snapshot of the values that the service currently provides (e.g. the ids of all images).
+     * The snapshot is compared against the cached values, so that only added and removed values are written to the cache.
+     * @param service
+     * @return
+     */
+    public Set<String> snapshot(S service);
+
+    /**
+     * Updates the cache from a fresh snapshot of the service.
+     * @param service
+     * @return the number of values that were added to or removed from the cache.
+     */
+    public int refresh(S service);
+
 }
@@ -0,0 +1,67 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jclouds.karaf.cache;
+
+import com.google.common.collect.Multimap;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link CacheProvider} that never blocks completers while a refresh is in progress.
+ * Each cache type is a {@link ConcurrentSetMultimap}, so readers and writers don't need any locking.
+ * Each instance holds its own caches: the completers share the caches of the CacheProvider service that the
+ * cache bundle registers.
+ */
+public class ConcurrentCacheProvider implements CacheProvider {
+
+    private final ConcurrentMap<String, Multimap<String, String>> caches = new ConcurrentHashMap<String, Multimap<String, String>>();
+
+    public Multimap<String, String> getProviderCacheForType(String type) {
+        Multimap<String, String> cache = caches.get(type);
+        if (cache == null) {
+            Multimap<String, String> created = createCache(type);
+            cache = caches.putIfAbsent(type, created);
+            if (cache == null) {
+                cache = created;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Creates the cache for the specified type.
+     * @param type
+     * @return
+     */
+    protected Multimap<String, String> createCache(String type) {
+        return ConcurrentSetMultimap.create();
+    }
+
+    /**
+     * Returns all caches that have been created so far by type.
+     * @return
+     */
+    public Map<String, Multimap<String, String>> getCaches() {
+        return Collections.unmodifiableMap(caches);
+    }
+}
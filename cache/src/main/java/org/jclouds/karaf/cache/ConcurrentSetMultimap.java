@@ -0,0 +1,400 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jclouds.karaf.cache;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableMultiset;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link SetMultimap} that can be read and written concurrently without locking.
+ * The values of each key are held in a compact, immutable sorted array, that writers replace with a compare and set.
+ * Readers never block and iterating over any view never throws a {@link java.util.ConcurrentModificationException}.
+ * Adding a new value copies the array of the key, so callers that add many values to a key should add them at once
+ * with {@link #putAll(Object, Iterable)} or {@link #replaceValues(Object, Iterable)}, which copy it only once.
+ * {@link #replaceValues(Object, Iterable)} swaps in all the new values of the key at once,
+ * so readers see either the old or the new values of the key, never a mix of both.
+ * Values are interned in a dictionary that is shared by all instances, so an id that is cached under several keys
+ * (e.g. the context name and the provider id) or by several caches is held in memory only once.
+ * The values are kept in their natural order (so they must be {@link Comparable}),
+ * which lets {@link #range(Object, Object, Object)} find a range of values in logarithmic time.
+ */
+public class ConcurrentSetMultimap<K, V> implements SetMultimap<K, V>, RangeIndexed<K, V> {
+
+    private static final Interner<Object> DICTIONARY = Interners.newWeakInterner();
+
+    private final ConcurrentMap<K, ImmutableSortedSet<V>> map = new ConcurrentHashMap<K, ImmutableSortedSet<V>>();
+
+    @SuppressWarnings("unchecked")
+    private final Comparator<V> order = (Comparator<V>) Ordering.natural();
+
+    private final Predicate<K> hasValues = new Predicate<K>() {
+        @Override
+        public boolean apply(K key) {
+            return containsKey(key);
+        }
+    };
+
+    private static final Predicate<Collection<?>> NOT_EMPTY = new Predicate<Collection<?>>() {
+        @Override
+        public boolean apply(Collection<?> values) {
+            return !values.isEmpty();
+        }
+    };
+
+    public static <K, V> ConcurrentSetMultimap<K, V> create() {
+        return new ConcurrentSetMultimap<K, V>();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V intern(V value) {
+        return (V) DICTIONARY.intern(value);
+    }
+
+    private ImmutableSortedSet<V> union(ImmutableSortedSet<V> current, Iterable<? extends V> values) {
+        ImmutableSortedSet.Builder<V> builder = ImmutableSortedSet.orderedBy(order);
+        if (current != null) {
+            builder.addAll(current);
+        }
+        for (V value : values) {
+            builder.add(intern(value));
+        }
+        return builder.build();
+    }
+
+    private ImmutableSortedSet<V> without(ImmutableSortedSet<V> current, Object removed) {
+        ImmutableSortedSet.Builder<V> builder = ImmutableSortedSet.orderedBy(order);
+        for (V value : current) {
+            if (!value.equals(removed)) {
+                builder.add(value);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Replaces the values of the key, if they are still the current ones.
+     * @param key
+     * @param current the values that were read or null if there were none.
+     * @param next    the new values.
+     * @return true if the values have been replaced.
+     */
+    private boolean swap(K key, ImmutableSortedSet<V> current, ImmutableSortedSet<V> next) {
+        if (current == null) {
+            return next.isEmpty() || map.putIfAbsent(key, next) == null;
+        } else if (next.isEmpty()) {
+            return map.remove(key, current);
+        } else {
+            return map.replace(key, current, next);
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Set<V> values : map.values()) {
+            size += values.size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return map.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        for (Set<V> values : map.values()) {
+            if (values.contains(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean containsEntry(Object key, Object value) {
+        Set<V> values = map.get(key);
+        return values != null && values.contains(value);
+    }
+
+    @Override
+    public boolean put(K key, V value) {
+        return putAll(key, Collections.singleton(value));
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        @SuppressWarnings("unchecked")
+        K k = (K) key;
+        while (true) {
+            ImmutableSortedSet<V> current = map.get(key);
+            if (current == null || !current.contains(value)) {
+                return false;
+            }
+            if (swap(k, current, without(current, value))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Adds the values to the key with a single copy of its array, so a bulk put takes the same time as a single one.
+     * Values that the key already holds are looked up in logarithmic time and don't copy the array at all.
+     * @param key
+     * @param values
+     * @return
+     */
+    @Override
+    public boolean putAll(K key, Iterable<? extends V> values) {
+        while (true) {
+            ImmutableSortedSet<V> current = map.get(key);
+            List<V> added = new ArrayList<V>();
+            for (V value : values) {
+                if (current == null || !current.contains(value)) {
+                    added.add(value);
+                }
+            }
+            if (added.isEmpty()) {
+                return false;
+            }
+            if (swap(key, current, union(current, added))) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public boolean putAll(Multimap<? extends K, ? extends V> multimap) {
+        boolean changed = false;
+        for (Map.Entry<? extends K, ? extends Collection<? extends V>> entry : multimap.asMap().entrySet()) {
+            changed |= putAll(entry.getKey(), entry.getValue());
+        }
+        return changed;
+    }
+
+    @Override
+    public Set<V> replaceValues(K key, Iterable<? extends V> values) {
+        ImmutableSortedSet<V> replacement = union(null, values);
+        Set<V> previous = replacement.isEmpty() ? map.remove(key) : map.put(key, replacement);
+        return previous != null ? previous : Collections.<V>emptySet();
+    }
+
+    @Override
+    public Set<V> removeAll(Object key) {
+        Set<V> previous = map.remove(key);
+        return previous != null ? previous : Collections.<V>emptySet();
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+    }
+
+    @Override
+    public Set<V> get(final K key) {
+        return new AbstractSet<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                Set<V> values = map.get(key);
+                final Iterator<V> iterator = values != null ? values.iterator() : Collections.<V>emptySet().iterator();
+                return new Iterator<V>() {
+                    private V current;
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public V next() {
+                        current = iterator.next();
+                        return current;
+                    }
+
+                    @Override
+                    public void remove() {
+                        ConcurrentSetMultimap.this.remove(key, current);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                Set<V> values = map.get(key);
+                return values != null ? values.size() : 0;
+            }
+
+            @Override
+            public boolean contains(Object value) {
+                return containsEntry(key, value);
+            }
+
+            @Override
+            public boolean add(V value) {
+                return put(key, value);
+            }
+
+            @Override
+            public boolean remove(Object value) {
+                return ConcurrentSetMultimap.this.remove(key, value);
+            }
+
+            @Override
+            public void clear() {
+                ConcurrentSetMultimap.this.removeAll(key);
+            }
+        };
+    }
+
+    @Override
+    public SortedSet<V> range(K key, V fromInclusive, V toExclusive) {
+        if (key != null) {
+            ImmutableSortedSet<V> values = map.get(key);
+            return values != null ? subSet(values, fromInclusive, toExclusive) : ImmutableSortedSet.<V>of();
+        }
+        SortedSet<V> result = new TreeSet<V>(order);
+        for (ImmutableSortedSet<V> values : map.values()) {
+            result.addAll(subSet(values, fromInclusive, toExclusive));
+        }
+        return result;
+    }
+
+    private static <V> SortedSet<V> subSet(ImmutableSortedSet<V> values, V fromInclusive, V toExclusive) {
+        return toExclusive != null ? values.subSet(fromInclusive, toExclusive) : values.tailSet(fromInclusive);
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return Sets.filter(map.keySet(), hasValues);
+    }
+
+    /**
+     * Returns a snapshot of the keys, with each key repeated by the number of its values.
+     * @return
+     */
+    @Override
+    public Multiset<K> keys() {
+        ImmutableMultiset.Builder<K> builder = ImmutableMultiset.builder();
+        for (Map.Entry<K, ImmutableSortedSet<V>> entry : map.entrySet()) {
+            builder.addCopies(entry.getKey(), entry.getValue().size());
+        }
+        return builder.build();
+    }
+
+    @Override
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return Iterators.concat(Iterators.transform(map.values().iterator(), new Function<ImmutableSortedSet<V>, Iterator<V>>() {
+                    @Override
+                    public Iterator<V> apply(ImmutableSortedSet<V> values) {
+                        return values.iterator();
+                    }
+                }));
+            }
+
+            @Override
+            public int size() {
+                return ConcurrentSetMultimap.this.size();
+            }
+        };
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entries() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return Iterators.concat(Iterators.transform(map.entrySet().iterator(), new Function<Map.Entry<K, ImmutableSortedSet<V>>, Iterator<Map.Entry<K, V>>>() {
+                    @Override
+                    public Iterator<Map.Entry<K, V>> apply(final Map.Entry<K, ImmutableSortedSet<V>> entry) {
+                        return Iterators.transform(entry.getValue().iterator(), new Function<V, Map.Entry<K, V>>() {
+                            @Override
+                            public Map.Entry<K, V> apply(V value) {
+                                return Maps.immutableEntry(entry.getKey(), value);
+                            }
+                        });
+                    }
+                }));
+            }
+
+            @Override
+            public int size() {
+                return ConcurrentSetMultimap.this.size();
+            }
+        };
+    }
+
+    @Override
+    public Map<K, Collection<V>> asMap() {
+        return Collections.<K, Collection<V>>unmodifiableMap(Maps.filterValues(map, NOT_EMPTY));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        return obj instanceof Multimap && asMap().equals(((Multimap<?, ?>) obj).asMap());
+    }
+
+    @Override
+    public int hashCode() {
+        return asMap().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return asMap().toString();
+    }
+}
@@ -0,0 +1,428 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jclouds.karaf.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheBuilderSpec;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ForwardingSetMultimap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link ConcurrentSetMultimap} that evicts values according to a {@link CacheBuilderSpec}.
+ * Every distinct value is tracked once by a Guava {@link Cache}, however many keys hold it (e.g. the context name
+ * and the provider id), so the spec can bound the number of distinct values (maximumSize) and let them expire
+ * (expireAfterWrite, expireAfterAccess). An evicted value is removed from all keys. When expireAfterAccess is used,
+ * only the range lookups that answer completions count as an access. Iterating over the values and putting a value
+ * that is already cached don't, so refreshes don't keep unused values alive.
+ * Refreshes apply their snapshots with {@link #applySnapshot(Object, Set)}, which remembers a hash of each value of
+ * the last snapshot of a key, so that the values that were evicted stay evicted while the source still has them.
+ * Without a spec nothing is tracked and the multimap costs no more than a plain {@link ConcurrentSetMultimap}.
+ */
+public class EvictingSetMultimap<K, V> extends ForwardingSetMultimap<K, V> implements RangeIndexed<K, V> {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final ConcurrentSetMultimap<K, V> delegate = ConcurrentSetMultimap.create();
+    private final ConcurrentMap<K, long[]> loaded = new ConcurrentHashMap<K, long[]>();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    //Null while the multimap is unbounded.
+    private volatile Cache<V, Boolean> values;
+    private volatile boolean expiresAfterAccess;
+
+    private final RemovalListener<V, Boolean> evictionListener = new RemovalListener<V, Boolean>() {
+        @Override
+        public void onRemoval(RemovalNotification<V, Boolean> notification) {
+            V value = notification.getKey();
+            if (notification.wasEvicted() && value != null) {
+                for (K key : delegate.keySet()) {
+                    delegate.remove(key, value);
+                }
+                evictionCount.incrementAndGet();
+            }
+        }
+    };
+
+    public EvictingSetMultimap(CacheBuilderSpec spec) {
+        configure(spec);
+    }
+
+    /**
+     * Applies a new spec. The values that are already cached are tracked by the new spec,
+     * which evicts them right away if the new maximum size is smaller. An empty spec stops tracking the values.
+     * @param spec
+     */
+    public synchronized void configure(CacheBuilderSpec spec) {
+        loaded.clear();
+        if (spec.toParsableString().isEmpty()) {
+            this.values = null;
+            this.expiresAfterAccess = false;
+            return;
+        }
+        Cache<V, Boolean> cache = CacheBuilder.from(spec).removalListener(evictionListener).build();
+        for (Map.Entry<K, V> entry : delegate.entries()) {
+            cache.put(entry.getValue(), Boolean.TRUE);
+        }
+        this.expiresAfterAccess = spec.toParsableString().contains("expireAfterAccess");
+        this.values = cache;
+    }
+
+    /**
+     * Returns the number of values that have been evicted because of size or expiration.
+     * @return
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Applies a fresh snapshot of the values of the key, e.g. from a refresh.
+     * The values that the source added since the last snapshot are put and the cached values that the source no
+     * longer has are removed, with a single {@link #replaceValues(Object, Iterable)}. Values that were already in the
+     * last snapshot but have been evicted since are neither put back nor counted as a change.
+     * @param key
+     * @param snapshot
+     * @return the number of values that were added or removed.
+     */
+    public synchronized int applySnapshot(K key, Set<? extends V> snapshot) {
+        long[] previous = values != null ? loaded.get(key) : null;
+        Set<V> cached = Sets.newHashSet(delegate.get(key));
+        Set<V> replacement = Sets.newHashSet();
+        int changes = 0;
+        for (V value : cached) {
+            if (snapshot.contains(value)) {
+                replacement.add(value);
+            } else {
+                changes++;
+            }
+        }
+        for (V value : snapshot) {
+            if (!cached.contains(value) && (previous == null || Arrays.binarySearch(previous, hash(value)) < 0)) {
+                replacement.add(value);
+                changes++;
+            }
+        }
+        if (changes > 0) {
+            if (replacement.isEmpty()) {
+                removeAll(key);
+            } else {
+                replaceValues(key, replacement);
+            }
+        }
+        if (values != null && !snapshot.isEmpty()) {
+            loaded.put(key, hashes(snapshot));
+        } else {
+            loaded.remove(key);
+        }
+        return changes;
+    }
+
+    @Override
+    protected SetMultimap<K, V> delegate() {
+        return delegate;
+    }
+
+    @Override
+    public boolean put(K key, V value) {
+        boolean added = delegate.put(key, value);
+        track(value);
+        return added;
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        boolean removed = delegate.remove(key, value);
+        if (removed) {
+            untrack(value);
+            forget(key, value);
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean putAll(K key, Iterable<? extends V> values) {
+        List<V> added = Lists.newArrayList(values);
+        boolean changed = delegate.putAll(key, added);
+        for (V value : added) {
+            track(value);
+        }
+        return changed;
+    }
+
+    @Override
+    public boolean putAll(Multimap<? extends K, ? extends V> multimap) {
+        boolean changed = false;
+        for (Map.Entry<? extends K, ? extends Collection<? extends V>> entry : multimap.asMap().entrySet()) {
+            changed |= putAll(entry.getKey(), entry.getValue());
+        }
+        return changed;
+    }
+
+    @Override
+    public Set<V> replaceValues(K key, Iterable<? extends V> values) {
+        Set<V> replacement = Sets.newHashSet(values);
+        Set<V> previous = delegate.replaceValues(key, replacement);
+        for (V value : previous) {
+            if (!replacement.contains(value)) {
+                untrack(value);
+            }
+        }
+        for (V value : replacement) {
+            track(value);
+        }
+        return previous;
+    }
+
+    @Override
+    public Set<V> removeAll(Object key) {
+        Set<V> previous = delegate.removeAll(key);
+        for (V value : previous) {
+            untrack(value);
+        }
+        loaded.remove(key);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        delegate.clear();
+        loaded.clear();
+        Cache<V, Boolean> cache = values;
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    @Override
+    public Set<V> get(final K key) {
+        cleanUp();
+        return new AbstractSet<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                final Iterator<V> iterator = delegate.get(key).iterator();
+                return new Iterator<V>() {
+                    private V current;
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public V next() {
+                        current = iterator.next();
+                        return current;
+                    }
+
+                    @Override
+                    public void remove() {
+                        EvictingSetMultimap.this.remove(key, current);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return delegate.get(key).size();
+            }
+
+            @Override
+            public boolean contains(Object value) {
+                return delegate.containsEntry(key, value);
+            }
+
+            @Override
+            public boolean add(V value) {
+                return put(key, value);
+            }
+
+            @Override
+            public boolean remove(Object value) {
+                return EvictingSetMultimap.this.remove(key, value);
+            }
+
+            @Override
+            public void clear() {
+                EvictingSetMultimap.this.removeAll(key);
+            }
+        };
+    }
+
+    @Override
+    public Collection<V> values() {
+        cleanUp();
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                final Iterator<Map.Entry<K, V>> iterator = delegate.entries().iterator();
+                return new Iterator<V>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public V next() {
+                        return iterator.next().getValue();
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return delegate.size();
+            }
+        };
+    }
+
+    @Override
+    public SortedSet<V> range(K key, V fromInclusive, V toExclusive) {
+        cleanUp();
+        if (key != null) {
+            return touchAll(delegate.range(key, fromInclusive, toExclusive));
+        }
+        SortedSet<V> result = new TreeSet<V>();
+        for (K k : delegate.keySet()) {
+            result.addAll(touchAll(delegate.range(k, fromInclusive, toExclusive)));
+        }
+        return result;
+    }
+
+    private SortedSet<V> touchAll(SortedSet<V> values) {
+        SortedSet<V> result = ImmutableSortedSet.copyOfSorted(values);
+        for (V value : result) {
+            touch(value);
+        }
+        return result;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entries() {
+        return Collections.unmodifiableSet(delegate.entries());
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return Collections.unmodifiableSet(delegate.keySet());
+    }
+
+    private void cleanUp() {
+        Cache<V, Boolean> cache = values;
+        if (cache != null) {
+            cache.cleanUp();
+        }
+    }
+
+    /**
+     * Starts tracking a value that has been put. A value that is already tracked is left alone, so that putting it
+     * again neither counts as an access nor as a write.
+     * @param value
+     */
+    private void track(V value) {
+        Cache<V, Boolean> cache = values;
+        //Unlike putIfAbsent, containsKey doesn't count as an access.
+        if (cache != null && !cache.asMap().containsKey(value)) {
+            cache.put(value, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Stops tracking a value that has been removed, unless another key still holds it.
+     * @param value
+     */
+    private void untrack(Object value) {
+        Cache<V, Boolean> cache = values;
+        if (cache != null && !delegate.containsValue(value)) {
+            cache.invalidate(value);
+        }
+    }
+
+    /**
+     * Drops a value that has been removed on purpose from the last snapshot of the key,
+     * so that the next snapshot puts it back if the source still has it.
+     * @param key
+     * @param value
+     */
+    @SuppressWarnings("unchecked")
+    private void forget(Object key, Object value) {
+        long[] hashes = loaded.get(key);
+        if (hashes == null) {
+            return;
+        }
+        int index = Arrays.binarySearch(hashes, hash(value));
+        if (index >= 0) {
+            long[] remaining = new long[hashes.length - 1];
+            System.arraycopy(hashes, 0, remaining, 0, index);
+            System.arraycopy(hashes, index + 1, remaining, index, remaining.length - index);
+            loaded.replace((K) key, hashes, remaining);
+        }
+    }
+
+    private void touch(V value) {
+        Cache<V, Boolean> cache = values;
+        if (expiresAfterAccess && cache != null) {
+            cache.getIfPresent(value);
+        }
+    }
+
+    private static long[] hashes(Set<?> values) {
+        long[] hashes = new long[values.size()];
+        int i = 0;
+        for (Object value : values) {
+            hashes[i++] = hash(value);
+        }
+        Arrays.sort(hashes);
+        return hashes;
+    }
+
+    private static long hash(Object value) {
+        return HASH.hashString(value.toString(), Charsets.UTF_8).asLong();
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jclouds.karaf.cache;
+
+/**
+ * A {@link Cacheable} that only populates its cache once the cache is in demand, e.g. after the first completion.
+ * Until then its refreshes return {@link #DEFERRED} without calling the service.
+ */
+public interface LazyCacheable<S> extends Cacheable<S> {
+
+    /**
+     * The result of a refresh that has been deferred, which neither shortens nor stretches the refresh interval.
+     */
+    int DEFERRED = -1;
+
+    /**
+     * Sets the trigger that the cacheable runs when its cache is first in demand.
+     * The trigger queues refreshes of the cacheable for all bound services on the usual refresh path.
+     * @param trigger the trigger or null when the cacheable is unbound.
+     */
+    void setRefreshTrigger(Runnable trigger);
+
+    /**
+     * Marks the cache as in demand without running the trigger, e.g. before a refresh that the user asked for,
+     * so that the refresh loads the cache instead of being deferred.
+     */
+    void markDemanded();
+}
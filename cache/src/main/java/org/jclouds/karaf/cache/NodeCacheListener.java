@@ -0,0 +1,128 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jclouds.karaf.cache;
+
+import com.google.common.collect.Multimap;
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.karaf.core.ComputeNodeListener;
+import org.jclouds.karaf.core.Constants;
+import org.jclouds.karaf.utils.ServiceHelper;
+
+import java.util.List;
+
+/**
+ * A {@link ComputeNodeListener} that applies node events to the node caches as they happen,
+ * so that the node completers are accurate without waiting for the next refresh.
+ */
+public class NodeCacheListener implements ComputeNodeListener {
+
+    private final CacheProvider cacheProvider;
+
+    public NodeCacheListener(CacheProvider cacheProvider) {
+        this.cacheProvider = cacheProvider;
+    }
+
+    @Override
+    public void nodeCreated(NodeMetadata node) {
+        //The cache keys are derived from the compute service, so only the events that carry it are applied.
+    }
+
+    @Override
+    public void nodeDestroyed(NodeMetadata node) {
+    }
+
+    @Override
+    public void nodeCreated(ComputeService computeService, NodeMetadata node) {
+        if (node.getGroup() != null) {
+            for (String key : ServiceHelper.findCacheKeysForService(computeService)) {
+                put(Constants.GROUP, key, node.getGroup());
+            }
+        }
+        update(computeService, node, node.getStatus());
+    }
+
+    @Override
+    public void nodeDestroyed(ComputeService computeService, NodeMetadata node) {
+        //Which other nodes are in the group is not known here, so the group is dropped and the next refresh
+        //puts it back if the group still has nodes.
+        if (node.getGroup() != null) {
+            for (String key : ServiceHelper.findCacheKeysForService(computeService)) {
+                remove(Constants.GROUP, key, node.getGroup());
+            }
+        }
+        update(computeService, node, NodeMetadata.Status.TERMINATED);
+    }
+
+    @Override
+    public void nodeSuspended(ComputeService computeService, NodeMetadata node) {
+        update(computeService, node, NodeMetadata.Status.SUSPENDED);
+    }
+
+    @Override
+    public void nodeResumed(ComputeService computeService, NodeMetadata node) {
+        update(computeService, node, NodeMetadata.Status.RUNNING);
+    }
+
+    /**
+     * Moves the node to the node caches that match the status.
+     * @param computeService
+     * @param node
+     * @param status
+     */
+    private void update(ComputeService computeService, NodeMetadata node, NodeMetadata.Status status) {
+        String id = node.getId();
+        if (id == null) {
+            return;
+        }
+        List<String> keys = ServiceHelper.findCacheKeysForService(computeService);
+        boolean exists = status != NodeMetadata.Status.TERMINATED;
+        boolean running = status == NodeMetadata.Status.RUNNING;
+        boolean suspended = status == NodeMetadata.Status.SUSPENDED;
+        for (String key : keys) {
+            update(Constants.NODE_CACHE, key, id, exists);
+            update(Constants.ACTIVE_NODE_CACHE, key, id, exists && running);
+            update(Constants.INACTIVE_NODE_CACHE, key, id, exists && !running);
+            update(Constants.SUSPENDED_NODE_CACHE, key, id, exists && suspended);
+        }
+    }
+
+    private void update(String type, String key, String id, boolean present) {
+        if (present) {
+            put(type, key, id);
+        } else {
+            remove(type, key, id);
+        }
+    }
+
+    private void remove(String type, String key, String value) {
+        Multimap<String, String> cache = cacheProvider.getProviderCacheForType(type);
+        synchronized (cache) {
+            cache.remove(key, value);
+        }
+    }
+
+    private void put(String type, String key, String value) {
+        Multimap<String, String> cache = cacheProvider.getProviderCacheForType(type);
+        synchronized (cache) {
+            cache.put(key, value);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jclouds.karaf.cache;
+
+import java.util.SortedSet;
+
+/**
+ * A multimap that keeps the values of each key sorted, so that a range of values is found without scanning all values.
+ */
+public interface RangeIndexed<K, V> {
+
+    /**
+     * Returns the values from fromInclusive up to toExclusive, in order.
+     * @param key           the key whose values are searched or null to search the values of all keys.
+     * @param fromInclusive the lower bound.
+     * @param toExclusive   the upper bound or null for no upper bound.
+     * @return
+     */
+    SortedSet<V> range(K key, V fromInclusive, V toExclusive);
+}
@@ -0,0 +1,473 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jclouds.karaf.cache;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ExecutionList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jclouds.karaf.cache.management.CacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.jclouds.karaf.utils.ServiceHelper.toId;
+
+/**
+ * Runs {@link Cacheable} updates on a bounded pool of worker threads.
+ * Updates are queued in one lane per provider, so that a single provider never gets more than
+ * maxPerProvider concurrent updates and a slow provider only delays its own caches.
+ * Updates that run longer than the task timeout are cancelled, but keep their provider's slot until the call
+ * actually returns, so that calls which ignore the interrupt still count against the provider's limit.
+ * Updates are coalesced per service and {@link Cacheable}: while an update is queued or running,
+ * submitting the same update again returns the pending one instead of queuing a duplicate.
+ * Every update needs a permit of its provider's rate limit before it runs. An update that gets none gives its worker
+ * back and is run again once a permit is due, still holding its lane slot. The updates of each
+ * {@link Cacheable} for a service go through a {@link CircuitBreaker}, so that a provider that is down or throttling
+ * is left alone instead of being called (and waited for) on every cycle.
+ * Priority updates (e.g. requested by a user) are dispatched ahead of all the background updates that still wait,
+ * both in their lane and in the worker pool, and are not held back by an open circuit breaker.
+ */
+public class RefreshEngine<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RefreshEngine.class);
+
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService watchdog;
+    private final int maxPerProvider;
+    private final long taskTimeout;
+    private final RefreshLimits limits;
+
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+    private final ConcurrentMap<Map.Entry<T, Cacheable<T>>, RefreshTask> tasks = new ConcurrentHashMap<Map.Entry<T, Cacheable<T>>, RefreshTask>();
+    private final ConcurrentMap<Map.Entry<T, Cacheable<T>>, CircuitBreaker> breakers = new ConcurrentHashMap<Map.Entry<T, Cacheable<T>>, CircuitBreaker>();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param poolSize       the maximum number of updates that run concurrently.
+     * @param maxPerProvider the maximum number of updates that run concurrently against a single provider.
+     * @param taskTimeout    the time in milliseconds after which a running update is cancelled.
+     * @param watchdog       the executor used to schedule the timeouts.
+     */
+    public RefreshEngine(int poolSize, int maxPerProvider, long taskTimeout, ScheduledExecutorService watchdog) {
+        this(poolSize, maxPerProvider, taskTimeout, watchdog, RefreshLimits.getInstance());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param poolSize       the maximum number of updates that run concurrently.
+     * @param maxPerProvider the maximum number of updates that run concurrently against a single provider.
+     * @param taskTimeout    the time in milliseconds after which a running update is cancelled.
+     * @param watchdog       the executor used to schedule the timeouts.
+     * @param limits         the rate limits and circuit breaker settings.
+     */
+    public RefreshEngine(int poolSize, int maxPerProvider, long taskTimeout, ScheduledExecutorService watchdog, RefreshLimits limits) {
+        this.workers = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("jclouds-cache-refresh-%d").setDaemon(true).build());
+        this.workers.allowCoreThreadTimeOut(true);
+        this.maxPerProvider = maxPerProvider;
+        this.taskTimeout = taskTimeout;
+        this.watchdog = watchdog;
+        this.limits = limits;
+    }
+
+    /**
+     * Queues an update of the {@link Cacheable} for the specified service,
+     * unless the same update is already queued or running.
+     * @param service
+     * @param cacheable
+     * @return a future that holds the number of cached values that the update changed,
+     * or fails with a {@link RejectedExecutionException} while the circuit breaker of the update is open.
+     */
+    public ListenableFuture<Integer> submit(T service, Cacheable<T> cacheable) {
+        return submit(service, cacheable, false);
+    }
+
+    /**
+     * Queues an update of the {@link Cacheable} for the specified service,
+     * unless the same update is already queued or running.
+     * A priority update goes ahead of the background updates that still wait and ignores the circuit breaker.
+     * If the same update is already queued as a background update, it is promoted instead.
+     * @param service
+     * @param cacheable
+     * @param priority
+     * @return a future that holds the number of cached values that the update changed,
+     * or fails with a {@link RejectedExecutionException} while the circuit breaker of a background update is open.
+     */
+    public ListenableFuture<Integer> submit(T service, Cacheable<T> cacheable, boolean priority) {
+        Map.Entry<T, Cacheable<T>> key = Maps.immutableEntry(service, cacheable);
+        RefreshTask pending = tasks.get(key);
+        if (pending != null) {
+            coalescedCount.incrementAndGet();
+            if (priority) {
+                laneFor(pending.providerId).promote(pending);
+            }
+            return pending;
+        }
+        String providerId = toId(service);
+        CircuitBreaker breaker = breakerFor(key);
+        if (!priority && !breaker.allowRequest()) {
+            LOGGER.debug("Skipping cache update for provider {}, its circuit breaker is open.", providerId);
+            return Futures.immediateFailedFuture(new RejectedExecutionException("Circuit breaker open for provider " + providerId));
+        }
+        RefreshTask task = new RefreshTask(key, providerId, breaker, priority);
+        pending = tasks.putIfAbsent(key, task);
+        if (pending != null) {
+            if (!priority) {
+                breaker.onCancelled();
+            }
+            coalescedCount.incrementAndGet();
+            if (priority) {
+                laneFor(providerId).promote(pending);
+            }
+            return pending;
+        }
+        laneFor(providerId).offer(task);
+        return task;
+    }
+
+    private CircuitBreaker breakerFor(Map.Entry<T, Cacheable<T>> key) {
+        CircuitBreaker breaker = breakers.get(key);
+        if (breaker == null) {
+            CircuitBreaker created = limits.newCircuitBreaker();
+            breaker = breakers.putIfAbsent(key, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * Returns the state of the circuit breaker of the updates of the {@link Cacheable} for the specified service.
+     * @param service
+     * @param cacheable
+     * @return
+     */
+    public CircuitBreaker.State getCircuitState(T service, Cacheable<T> cacheable) {
+        CircuitBreaker breaker = breakers.get(Maps.immutableEntry(service, cacheable));
+        return breaker != null ? breaker.getState() : CircuitBreaker.State.CLOSED;
+    }
+
+    /**
+     * Returns the number of submitted updates that were coalesced with a pending one.
+     * @return
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Cancels all queued and running updates for the specified service.
+     * @param service
+     */
+    public void cancel(T service) {
+        for (RefreshTask task : tasks.values()) {
+            if (task.service == service) {
+                task.cancel(true);
+            }
+        }
+        for (Map.Entry<T, Cacheable<T>> key : breakers.keySet()) {
+            if (key.getKey() == service) {
+                breakers.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Cancels all queued and running updates of the specified {@link Cacheable}.
+     * @param cacheable
+     */
+    public void cancel(Cacheable<T> cacheable) {
+        for (RefreshTask task : tasks.values()) {
+            if (task.cacheable == cacheable) {
+                task.cancel(true);
+            }
+        }
+        for (Map.Entry<T, Cacheable<T>> key : breakers.keySet()) {
+            if (key.getValue() == cacheable) {
+                breakers.remove(key);
+            }
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+        for (RefreshTask task : tasks.values()) {
+            task.cancel(true);
+        }
+    }
+
+    private Lane laneFor(String providerId) {
+        Lane lane = lanes.get(providerId);
+        if (lane == null) {
+            Lane newLane = new Lane();
+            lane = lanes.putIfAbsent(providerId, newLane);
+            if (lane == null) {
+                lane = newLane;
+            }
+        }
+        return lane;
+    }
+
+    /**
+     * Holds the updates of a single provider that wait for a free slot, priority updates first.
+     */
+    private class Lane {
+
+        private final Queue<RefreshTask> pending = new PriorityQueue<RefreshTask>();
+        private int running;
+
+        synchronized void offer(RefreshTask task) {
+            if (running < maxPerProvider) {
+                running++;
+                if (!dispatch(task)) {
+                    release();
+                }
+            } else {
+                pending.add(task);
+            }
+        }
+
+        /**
+         * Frees the slot of an update that was dispatched, once its worker is done with it,
+         * and hands the slot to the next update that waits.
+         */
+        synchronized void release() {
+            RefreshTask next;
+            while ((next = pending.poll()) != null) {
+                if (!next.isDone() && dispatch(next)) {
+                    return;
+                }
+            }
+            running--;
+        }
+
+        /**
+         * Removes an update that was cancelled while it waited for a slot.
+         * @param task
+         */
+        synchronized void remove(RefreshTask task) {
+            if (!task.dispatched) {
+                pending.remove(task);
+            }
+        }
+
+        /**
+         * Turns a waiting update into a priority update. The priority of a task only changes while it is
+         * out of the queues, so that their order stays consistent. Updates that already run are left alone.
+         * @param task
+         */
+        synchronized void promote(RefreshTask task) {
+            if (task.priority || task.startTime > 0 || task.isDone()) {
+                return;
+            }
+            if (!task.dispatched) {
+                if (pending.remove(task)) {
+                    task.priority = true;
+                    pending.add(task);
+                }
+            } else if (workers.remove(task)) {
+                task.priority = true;
+                try {
+                    workers.execute(task);
+                } catch (RejectedExecutionException ex) {
+                    task.cancel(false);
+                    release();
+                }
+            }
+        }
+
+        /**
+         * Hands the update to the workers. The update holds its slot until its worker returns from it,
+         * even if it is cancelled (or times out) earlier, so that calls that ignore the interrupt still count.
+         * @param task
+         * @return false if the workers rejected the update, which leaves its slot to the caller.
+         */
+        private boolean dispatch(RefreshTask task) {
+            task.dispatched = true;
+            try {
+                workers.execute(task);
+                return true;
+            } catch (RejectedExecutionException ex) {
+                task.cancel(false);
+                return false;
+            }
+        }
+    }
+
+    private class RefreshTask extends FutureTask<Integer> implements ListenableFuture<Integer>, Comparable<RefreshTask> {
+
+        private final Map.Entry<T, Cacheable<T>> key;
+        private final T service;
+        private final Cacheable<T> cacheable;
+        private final String providerId;
+        private final CircuitBreaker breaker;
+        private final long order = sequence.incrementAndGet();
+        private volatile boolean priority;
+        private volatile boolean dispatched;
+        private volatile boolean timedOut;
+        private volatile long startTime;
+        private final ExecutionList listeners = new ExecutionList();
+
+        private RefreshTask(final Map.Entry<T, Cacheable<T>> key, String providerId, CircuitBreaker breaker, boolean priority) {
+            super(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return key.getValue().refresh(key.getKey());
+                }
+            });
+            this.key = key;
+            this.service = key.getKey();
+            this.cacheable = key.getValue();
+            this.providerId = providerId;
+            this.breaker = breaker;
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(RefreshTask other) {
+            if (priority != other.priority) {
+                return priority ? -1 : 1;
+            }
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+
+        @Override
+        public void addListener(Runnable listener, Executor executor) {
+            listeners.add(listener, executor);
+        }
+
+        @Override
+        public void run() {
+            boolean deferred = false;
+            try {
+                if (isDone()) {
+                    return;
+                }
+                if (!limits.tryAcquire(providerId)) {
+                    deferred = defer();
+                    return;
+                }
+                ScheduledFuture<?> timeout;
+                try {
+                    timeout = watchdog.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            timedOut = true;
+                            cancel(true);
+                        }
+                    }, taskTimeout, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ex) {
+                    cancel(false);
+                    return;
+                }
+                startTime = System.currentTimeMillis();
+                try {
+                    super.run();
+                } finally {
+                    timeout.cancel(false);
+                }
+            } finally {
+                if (!deferred) {
+                    laneFor(providerId).release();
+                }
+            }
+        }
+
+        /**
+         * Runs the update again once the rate limit of its provider is due to allow it.
+         * @return false if the update could not be rescheduled and has been cancelled.
+         */
+        private boolean defer() {
+            try {
+                watchdog.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            workers.execute(RefreshTask.this);
+                        } catch (RejectedExecutionException ex) {
+                            cancel(false);
+                            laneFor(providerId).release();
+                        }
+                    }
+                }, limits.getRetryDelay(providerId), TimeUnit.MILLISECONDS);
+                return true;
+            } catch (RejectedExecutionException ex) {
+                cancel(false);
+                return false;
+            }
+        }
+
+        @Override
+        protected void done() {
+            tasks.remove(key, this);
+            laneFor(providerId).remove(this);
+
+            boolean failed = false;
+            if (timedOut) {
+                failed = true;
+                LOGGER.warn("Timed out while updating cache for provider " + providerId + " after " + taskTimeout + " ms.");
+            } else if (!isCancelled()) {
+                try {
+                    get();
+                } catch (ExecutionException e) {
+                    failed = true;
+                    LOGGER.warn("Error while updating cache:" + e.getCause().getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failed) {
+                breaker.onFailure();
+            } else if (startTime > 0 && !isCancelled()) {
+                breaker.onSuccess();
+            } else {
+                breaker.onCancelled();
+            }
+            if (startTime > 0 && (failed || !isCancelled())) {
+                CacheMetrics.getInstance().recordRefresh(providerId, cacheable.getClass().getSimpleName(),
+                        System.currentTimeMillis() - startTime, failed);
+            }
+            listeners.execute();
+        }
+    }
+}
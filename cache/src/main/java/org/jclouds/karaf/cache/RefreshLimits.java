@@ -0,0 +1,166 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jclouds.karaf.cache;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.osgi.service.cm.ConfigurationException;
+import org.osgi.service.cm.ManagedService;
+
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The limits that protect the providers from the background cache refreshes, shared by all {@link CacheManager}s.
+ * Each provider gets a token bucket that allows a number of refreshes per second, and each refresh of a
+ * {@link Cacheable} for a service gets a {@link CircuitBreaker}.
+ * Note that the rate counts refreshes, not API calls: a single refresh may call the provider many times,
+ * e.g. the blob completer lists every container. The limits are configured through Config Admin, e.g.:
+ *
+ * rate=1.0
+ * rate.aws-ec2=0.2
+ * breaker.failures=3
+ * breaker.openTime=300000
+ */
+public class RefreshLimits implements ManagedService {
+
+    public static final String PID = "org.jclouds.cache.refresh";
+
+    public static final double DEFAULT_RATE = 1.0;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    public static final long DEFAULT_OPEN_TIME = TimeUnit.MINUTES.toMillis(5);
+
+    private static final String RATE = "rate";
+    private static final String RATE_PREFIX = "rate.";
+    private static final String BREAKER_FAILURES = "breaker.failures";
+    private static final String BREAKER_OPEN_TIME = "breaker.openTime";
+
+    private static final RefreshLimits INSTANCE = new RefreshLimits();
+
+    private final ConcurrentMap<String, RateLimiter> rateLimiters = new ConcurrentHashMap<String, RateLimiter>();
+    private volatile double defaultRate = DEFAULT_RATE;
+    private volatile Map<String, Double> rates = new HashMap<String, Double>();
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long openTime = DEFAULT_OPEN_TIME;
+
+    public static RefreshLimits getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Takes a permit for one more refresh of the provider, without waiting.
+     * @param providerId
+     * @return false if the provider allows no more refreshes right now.
+     */
+    public boolean tryAcquire(String providerId) {
+        return rateLimiterFor(providerId).tryAcquire();
+    }
+
+    /**
+     * Returns the time in milliseconds after which a refresh that got no permit should try again.
+     * @param providerId
+     * @return
+     */
+    public long getRetryDelay(String providerId) {
+        return Math.max(1L, (long) (1000 / rateFor(providerId)));
+    }
+
+    /**
+     * Creates a new {@link CircuitBreaker} with the current settings.
+     * @return
+     */
+    public CircuitBreaker newCircuitBreaker() {
+        return new CircuitBreaker(failureThreshold, openTime);
+    }
+
+    private RateLimiter rateLimiterFor(String providerId) {
+        RateLimiter rateLimiter = rateLimiters.get(providerId);
+        if (rateLimiter == null) {
+            RateLimiter created = RateLimiter.create(rateFor(providerId));
+            rateLimiter = rateLimiters.putIfAbsent(providerId, created);
+            if (rateLimiter == null) {
+                rateLimiter = created;
+            }
+        }
+        return rateLimiter;
+    }
+
+    private double rateFor(String providerId) {
+        Double rate = rates.get(providerId);
+        return rate != null ? rate : defaultRate;
+    }
+
+    /**
+     * Update the configuration for a Managed Service.
+     * The new rates are applied to the providers right away, the new breaker settings to the breakers created from then on.
+     *
+     * @param properties A copy of the Configuration properties, or
+     *                   <code>null</code>.
+     * @throws ConfigurationException when a value is not a valid number.
+     */
+    @Override
+    public synchronized void updated(Dictionary properties) throws ConfigurationException {
+        double newDefaultRate = DEFAULT_RATE;
+        Map<String, Double> newRates = new HashMap<String, Double>();
+        int newFailureThreshold = DEFAULT_FAILURE_THRESHOLD;
+        long newOpenTime = DEFAULT_OPEN_TIME;
+        if (properties != null) {
+            for (Enumeration keys = properties.keys(); keys.hasMoreElements(); ) {
+                Object key = keys.nextElement();
+                Object value = properties.get(key);
+                if (!(key instanceof String) || value == null) {
+                    continue;
+                }
+                String name = (String) key;
+                try {
+                    if (RATE.equals(name)) {
+                        newDefaultRate = toRate(value);
+                    } else if (name.startsWith(RATE_PREFIX)) {
+                        newRates.put(name.substring(RATE_PREFIX.length()), toRate(value));
+                    } else if (BREAKER_FAILURES.equals(name)) {
+                        newFailureThreshold = Integer.parseInt(value.toString().trim());
+                    } else if (BREAKER_OPEN_TIME.equals(name)) {
+                        newOpenTime = Long.parseLong(value.toString().trim());
+                    }
+                } catch (IllegalArgumentException ex) {
+                    throw new ConfigurationException(name, ex.getMessage(), ex);
+                }
+            }
+        }
+        defaultRate = newDefaultRate;
+        rates = newRates;
+        failureThreshold = newFailureThreshold;
+        openTime = newOpenTime;
+        for (Map.Entry<String, RateLimiter> entry : rateLimiters.entrySet()) {
+            entry.getValue().setRate(rateFor(entry.getKey()));
+        }
+    }
+
+    private static double toRate(Object value) {
+        double rate = Double.parseDouble(value.toString().trim());
+        if (rate <= 0 || Double.isNaN(rate)) {
+            throw new IllegalArgumentException("The rate must be positive: " + value);
+        }
+        return rate;
+    }
+}
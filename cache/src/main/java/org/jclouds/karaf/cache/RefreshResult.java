@@ -0,0 +1,76 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jclouds.karaf.cache;
+
+/**
+ * The outcome of an on demand refresh of a single cacheable for a single service.
+ */
+public class RefreshResult {
+
+    private final String service;
+    private final String type;
+    private final int changes;
+    private final long duration;
+    private final String error;
+
+    public RefreshResult(String service, String type, int changes, long duration, String error) {
+        this.service = service;
+        this.type = type;
+        this.changes = changes;
+        this.duration = duration;
+        this.error = error;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Returns the number of cached values that were added or removed.
+     * @return
+     */
+    public int getChanges() {
+        return changes;
+    }
+
+    /**
+     * Returns the time in milliseconds from the request until the refresh completed, or -1 if it did not.
+     * @return
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Returns the reason the refresh failed or did not complete in time, or null if it succeeded.
+     * @return
+     */
+    public String getError() {
+        return error;
+    }
+
+    public boolean isSuccessful() {
+        return error == null;
+    }
+}
@@ -0,0 +1,272 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jclouds.karaf.cache;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.rest.AuthorizationException;
+import org.jclouds.rest.RetryAfterException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.jclouds.karaf.utils.ServiceHelper.toId;
+
+/**
+ * Schedules the refreshes of each {@link Cacheable} for each service on the {@link RefreshEngine}.
+ * The interval of each refresh adapts to the changes it finds: it is halved when a refresh changes the cache
+ * and doubled when it does not, within the min and max interval, while a refresh that a {@link LazyCacheable} deferred
+ * leaves the interval as it is. When the provider throttles the requests or
+ * rejects the credentials, the refresh backs off exponentially. Every delay gets a random jitter,
+ * so that the refreshes of different caches do not run in lockstep.
+ */
+public class RefreshScheduler<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RefreshScheduler.class);
+
+    public static final long DEFAULT_MIN_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    public static final long DEFAULT_INITIAL_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+    public static final long DEFAULT_MAX_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+    private static final double JITTER = 0.2;
+    private static final int MAX_BACKOFF_SHIFT = 16;
+
+    private final RefreshEngine<T> refreshEngine;
+    private final ScheduledExecutorService executor;
+    private final long minInterval;
+    private final long initialInterval;
+    private final long maxInterval;
+    private final Random random = new Random();
+
+    private final ConcurrentMap<Map.Entry<T, Cacheable<T>>, Schedule> schedules = new ConcurrentHashMap<Map.Entry<T, Cacheable<T>>, Schedule>();
+
+    public RefreshScheduler(RefreshEngine<T> refreshEngine, ScheduledExecutorService executor) {
+        this(refreshEngine, executor, DEFAULT_MIN_INTERVAL, DEFAULT_INITIAL_INTERVAL, DEFAULT_MAX_INTERVAL);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param refreshEngine   the engine that runs the refreshes.
+     * @param executor        the executor used to delay the refreshes.
+     * @param minInterval     the shortest interval in milliseconds between two refreshes.
+     * @param initialInterval the interval in milliseconds after the first refresh.
+     * @param maxInterval     the longest interval in milliseconds between two refreshes, including back off.
+     */
+    public RefreshScheduler(RefreshEngine<T> refreshEngine, ScheduledExecutorService executor, long minInterval, long initialInterval, long maxInterval) {
+        this.refreshEngine = refreshEngine;
+        this.executor = executor;
+        this.minInterval = minInterval;
+        this.initialInterval = initialInterval;
+        this.maxInterval = maxInterval;
+    }
+
+    /**
+     * Refreshes the {@link Cacheable} for the service now, unless a refresh is already running,
+     * and schedules the next refresh once it completes.
+     * @param service
+     * @param cacheable
+     */
+    public void refresh(T service, Cacheable<T> cacheable) {
+        scheduleFor(service, cacheable).refresh();
+    }
+
+    /**
+     * Stops refreshing any {@link Cacheable} for the specified service.
+     * @param service
+     */
+    public void cancel(T service) {
+        for (Map.Entry<Map.Entry<T, Cacheable<T>>, Schedule> entry : schedules.entrySet()) {
+            if (entry.getValue().service == service && schedules.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().cancel();
+            }
+        }
+    }
+
+    /**
+     * Stops refreshing the specified {@link Cacheable}.
+     * @param cacheable
+     */
+    public void cancel(Cacheable<T> cacheable) {
+        for (Map.Entry<Map.Entry<T, Cacheable<T>>, Schedule> entry : schedules.entrySet()) {
+            if (entry.getValue().cacheable == cacheable && schedules.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().cancel();
+            }
+        }
+    }
+
+    public void shutdown() {
+        for (Schedule schedule : schedules.values()) {
+            schedule.cancel();
+        }
+        schedules.clear();
+    }
+
+    private Schedule scheduleFor(T service, Cacheable<T> cacheable) {
+        Map.Entry<T, Cacheable<T>> key = Maps.immutableEntry(service, cacheable);
+        Schedule schedule = schedules.get(key);
+        if (schedule == null) {
+            Schedule created = new Schedule(service, cacheable);
+            schedule = schedules.putIfAbsent(key, created);
+            if (schedule == null) {
+                schedule = created;
+            }
+        }
+        return schedule;
+    }
+
+    /**
+     * Returns true if the failure shows that the provider throttles the requests or rejects the credentials.
+     * @param failure
+     * @return
+     */
+    static boolean isThrottledOrUnauthorized(Throwable failure) {
+        for (Throwable cause : Throwables.getCausalChain(failure)) {
+            if (cause instanceof AuthorizationException || cause instanceof RetryAfterException) {
+                return true;
+            }
+            if (cause instanceof HttpResponseException && ((HttpResponseException) cause).getResponse() != null) {
+                int status = ((HttpResponseException) cause).getResponse().getStatusCode();
+                if (status == 401 || status == 403 || status == 429 || status == 503) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static long retryAfterMillis(Throwable failure) {
+        for (Throwable cause : Throwables.getCausalChain(failure)) {
+            if (cause instanceof RetryAfterException) {
+                return TimeUnit.SECONDS.toMillis(((RetryAfterException) cause).getSeconds());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The refresh state of a {@link Cacheable} for a single service.
+     */
+    private class Schedule implements Runnable, FutureCallback<Integer> {
+
+        private final T service;
+        private final Cacheable<T> cacheable;
+        private long interval = initialInterval;
+        private int failures;
+        private boolean running;
+        private boolean again;
+        private boolean cancelled;
+        private Future<?> pending;
+
+        private Schedule(T service, Cacheable<T> cacheable) {
+            this.service = service;
+            this.cacheable = cacheable;
+        }
+
+        @Override
+        public void run() {
+            refresh();
+        }
+
+        void refresh() {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                if (running) {
+                    //Refresh once more when the running refresh completes, it may have started before the request.
+                    again = true;
+                    return;
+                }
+                running = true;
+                if (pending != null) {
+                    pending.cancel(false);
+                }
+            }
+            //Submit outside of the lock, the engine may complete the future (and call back) on this thread.
+            ListenableFuture<Integer> future = refreshEngine.submit(service, cacheable);
+            synchronized (this) {
+                if (running) {
+                    pending = future;
+                }
+            }
+            Futures.addCallback(future, this);
+        }
+
+        @Override
+        public synchronized void onSuccess(Integer changes) {
+            running = false;
+            failures = 0;
+            if (changes != null && changes > 0) {
+                interval = Math.max(minInterval, interval / 2);
+            } else if (changes == null || changes != LazyCacheable.DEFERRED) {
+                interval = Math.min(maxInterval, interval * 2);
+            }
+            scheduleNext(interval);
+        }
+
+        @Override
+        public synchronized void onFailure(Throwable failure) {
+            running = false;
+            long delay = interval;
+            if (isThrottledOrUnauthorized(failure)) {
+                failures++;
+                delay = Math.max(Math.min(maxInterval, interval << Math.min(failures, MAX_BACKOFF_SHIFT)), retryAfterMillis(failure));
+                LOGGER.debug("Backing off cache refresh for provider {} for {} ms.", toId(service), delay);
+            }
+            scheduleNext(delay);
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (pending != null) {
+                pending.cancel(true);
+            }
+        }
+
+        private void scheduleNext(long delay) {
+            if (cancelled) {
+                return;
+            }
+            if (again) {
+                again = false;
+                delay = 0;
+            }
+            long jitter = (long) (delay * JITTER * (2 * random.nextDouble() - 1));
+            try {
+                pending = executor.schedule(this, Math.max(0, delay + jitter), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ex) {
+                //The executor has been shut down.
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jclouds.karaf.cache.management;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Collects the refresh and lookup statistics of all completer caches.
+ * Like the caches themselves, the metrics are shared by all bundles that use them.
+ */
+public class CacheMetrics {
+
+    private static final CacheMetrics INSTANCE = new CacheMetrics();
+
+    private final ConcurrentMap<String, RefreshStats> refreshes = new ConcurrentHashMap<String, RefreshStats>();
+    private final ConcurrentMap<String, LookupStats> lookups = new ConcurrentHashMap<String, LookupStats>();
+
+    public static CacheMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records a refresh of a cacheable for a provider.
+     * @param provider
+     * @param cacheable
+     * @param duration the duration of the refresh in milliseconds.
+     * @param failed
+     */
+    public void recordRefresh(String provider, String cacheable, long duration, boolean failed) {
+        String key = provider + "/" + cacheable;
+        RefreshStats stats = refreshes.get(key);
+        if (stats == null) {
+            RefreshStats created = new RefreshStats(provider, cacheable);
+            stats = refreshes.putIfAbsent(key, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        stats.record(duration, failed);
+    }
+
+    /**
+     * Records a completer lookup.
+     * @param completer
+     * @param hit true if the cache had candidates for the lookup.
+     */
+    public void recordLookup(String completer, boolean hit) {
+        LookupStats stats = lookups.get(completer);
+        if (stats == null) {
+            LookupStats created = new LookupStats(completer);
+            stats = lookups.putIfAbsent(completer, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        stats.record(hit);
+    }
+
+    public List<RefreshStats> getRefreshStats() {
+        return new ArrayList<RefreshStats>(refreshes.values());
+    }
+
+    public List<LookupStats> getLookupStats() {
+        return new ArrayList<LookupStats>(lookups.values());
+    }
+
+    public void reset() {
+        refreshes.clear();
+        lookups.clear();
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jclouds.karaf.cache.management;
+
+import com.google.common.collect.Multimap;
+import org.jclouds.karaf.cache.BoundedCacheProvider;
+import org.jclouds.karaf.cache.ConcurrentCacheProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class CacheStats implements CacheStatsMXBean {
+
+    private final ConcurrentCacheProvider cacheProvider;
+    private final CacheMetrics metrics;
+
+    public CacheStats(ConcurrentCacheProvider cacheProvider, CacheMetrics metrics) {
+        this.cacheProvider = cacheProvider;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public List<CacheTypeStats> getCacheTypes() {
+        List<CacheTypeStats> result = new ArrayList<CacheTypeStats>();
+        for (Map.Entry<String, Multimap<String, String>> entry : cacheProvider.getCaches().entrySet()) {
+            long evictions = 0;
+            if (cacheProvider instanceof BoundedCacheProvider) {
+                evictions = ((BoundedCacheProvider) cacheProvider).getEvictionCount(entry.getKey());
+            }
+            result.add(CacheTypeStats.of(entry.getKey(), entry.getValue(), evictions));
+        }
+        return result;
+    }
+
+    @Override
+    public List<RefreshStats> getRefreshes() {
+        return metrics.getRefreshStats();
+    }
+
+    @Override
+    public List<LookupStats> getLookups() {
+        return metrics.getLookupStats();
+    }
+
+    @Override
+    public void reset() {
+        metrics.reset();
+    }
+}
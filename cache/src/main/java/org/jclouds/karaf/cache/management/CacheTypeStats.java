@@ -0,0 +1,101 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jclouds.karaf.cache.management;
+
+import com.google.common.collect.Multimap;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A snapshot of the size of a cache type.
+ */
+public class CacheTypeStats {
+
+    //Rough per object overheads of a 64 bit JVM: a String with its char array, a key with its hash entry and
+    //its sorted set and array and a value with its slot in the array.
+    private static final long STRING_OVERHEAD = 56;
+    private static final long KEY_OVERHEAD = 96;
+    private static final long VALUE_OVERHEAD = 8;
+
+    private final String type;
+    private final int keys;
+    private final int entries;
+    private final long approximateMemory;
+    private final long evictions;
+
+    public CacheTypeStats(String type, int keys, int entries, long approximateMemory, long evictions) {
+        this.type = type;
+        this.keys = keys;
+        this.entries = entries;
+        this.approximateMemory = approximateMemory;
+        this.evictions = evictions;
+    }
+
+    /**
+     * Creates the stats of a cache, by walking through all its keys and values.
+     * The values are interned, so each string is counted once, no matter how many keys hold it.
+     * @param type
+     * @param cache
+     * @param evictions
+     * @return
+     */
+    public static CacheTypeStats of(String type, Multimap<String, String> cache, long evictions) {
+        int keys = 0;
+        int entries = 0;
+        long memory = 0;
+        Set<String> strings = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+        for (Map.Entry<String, Collection<String>> entry : cache.asMap().entrySet()) {
+            keys++;
+            memory += sizeOf(entry.getKey(), strings) + KEY_OVERHEAD;
+            for (String value : entry.getValue()) {
+                entries++;
+                memory += sizeOf(value, strings) + VALUE_OVERHEAD;
+            }
+        }
+        return new CacheTypeStats(type, keys, entries, memory, evictions);
+    }
+
+    private static long sizeOf(String value, Set<String> counted) {
+        return counted.add(value) ? STRING_OVERHEAD + 2L * value.length() : 0;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public int getKeys() {
+        return keys;
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+
+    public long getApproximateMemory() {
+        return approximateMemory;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+}
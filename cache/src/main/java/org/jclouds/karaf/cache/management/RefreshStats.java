@@ -0,0 +1,106 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jclouds.karaf.cache.management;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The refresh statistics of a {@link org.jclouds.karaf.cache.Cacheable} for a single provider.
+ * Durations are in milliseconds, the histogram counts the refreshes that took less than 100 ms, 1 s, 10 s, 1 min and longer.
+ */
+public class RefreshStats {
+
+    private static final long[] HISTOGRAM_BOUNDS = {100, 1000, 10000, 60000};
+
+    private final String provider;
+    private final String cacheable;
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong totalDuration = new AtomicLong();
+    private final AtomicLong maxDuration = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BOUNDS.length + 1);
+    private volatile long lastDuration;
+    private volatile long lastRefreshTime;
+
+    public RefreshStats(String provider, String cacheable) {
+        this.provider = provider;
+        this.cacheable = cacheable;
+    }
+
+    void record(long duration, boolean failed) {
+        refreshCount.incrementAndGet();
+        if (failed) {
+            errorCount.incrementAndGet();
+        }
+        totalDuration.addAndGet(duration);
+        long max;
+        while ((max = maxDuration.get()) < duration && !maxDuration.compareAndSet(max, duration)) {
+            //retry
+        }
+        int bucket = 0;
+        while (bucket < HISTOGRAM_BOUNDS.length && duration >= HISTOGRAM_BOUNDS[bucket]) {
+            bucket++;
+        }
+        histogram.incrementAndGet(bucket);
+        lastDuration = duration;
+        lastRefreshTime = System.currentTimeMillis();
+    }
+
+    public String getProvider() {
+        return provider;
+    }
+
+    public String getCacheable() {
+        return cacheable;
+    }
+
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    public long getLastRefreshTime() {
+        return lastRefreshTime;
+    }
+
+    public long getLastDuration() {
+        return lastDuration;
+    }
+
+    public long getMaxDuration() {
+        return maxDuration.get();
+    }
+
+    public long getAverageDuration() {
+        long count = refreshCount.get();
+        return count > 0 ? totalDuration.get() / count : 0;
+    }
+
+    public long[] getDurationHistogram() {
+        long[] result = new long[histogram.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = histogram.get(i);
+        }
+        return result;
+    }
+}
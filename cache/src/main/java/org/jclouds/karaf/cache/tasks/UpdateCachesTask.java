@@ -23,20 +23,22 @@ import java.util.List;
 import java.util.Map;
 
 import org.jclouds.karaf.cache.Cacheable;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.jclouds.karaf.cache.RefreshScheduler;
 
+/**
+ * Refreshes every {@link Cacheable} for every service through the {@link RefreshScheduler}.
+ */
 public class UpdateCachesTask<T> implements Runnable {
 
-    private static final Logger LOGGER = LoggerFactory.getLogger(UpdateCachesTask.class);
-
     private final List<Cacheable<T>> cacheables;
     private final Map<String, T> services;
-    private boolean keepRunning = true;
+    private final RefreshScheduler<T> refreshScheduler;
+    private volatile boolean keepRunning = true;
 
-    public UpdateCachesTask(List<Cacheable<T>> cacheables, Map<String, T> services) {
+    public UpdateCachesTask(List<Cacheable<T>> cacheables, Map<String, T> services, RefreshScheduler<T> refreshScheduler) {
         this.cacheables = cacheables;
         this.services = services;
+        this.refreshScheduler = refreshScheduler;
     }
 
     @Override
@@ -45,12 +47,8 @@ public class UpdateCachesTask<T> implements Runnable {
             for (T service : services.values()) {
                 if (cacheables != null && !cacheables.isEmpty()) {
                     for (Cacheable<T> cacheable : cacheables) {
-                        try {
-                          if (keepRunning) {
-                            cacheable.updateOnAdded(service);
-                          }
-                        } catch (Throwable t) {
-                            LOGGER.warn("Error while updating cache:" + t.getMessage());
+                        if (keepRunning) {
+                            refreshScheduler.refresh(service, cacheable);
                         }
                     }
                 }
@@ -0,0 +1,245 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jclouds.karaf.cache.utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimap;
+import com.google.common.io.Closeables;
+import org.jclouds.karaf.cache.CacheProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves the completer caches to a file and loads them back, so that completion works right after a restart.
+ * The file is a versioned binary format, that is memory mapped when loaded:
+ *
+ * int magic, int version, int number of types,
+ * for each type: string type, int number of keys,
+ * for each key: string key, int number of values, string values.
+ *
+ * Strings are written as an int length followed by the UTF-8 bytes.
+ */
+public class CachePersistence {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachePersistence.class);
+
+    public static final int MAGIC = 0x4A434353;
+    public static final int VERSION = 1;
+
+    private CachePersistence() {
+        //Utility Class
+    }
+
+    /**
+     * Returns the default snapshot file under karaf.data or null if karaf.data is not set.
+     * @return
+     */
+    public static File getDefaultFile() {
+        String data = System.getProperty("karaf.data");
+        if (data == null) {
+            return null;
+        }
+        return new File(data + File.separatorChar + "jclouds" + File.separatorChar + "caches.bin");
+    }
+
+    /**
+     * Writes the caches to the file. The data are first written to a temporary file, which then replaces the file,
+     * so that a crash while saving never leaves a truncated snapshot behind.
+     * @param file
+     * @param caches
+     * @throws IOException
+     */
+    public static void save(File file, Map<String, Multimap<String, String>> caches) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create: " + dir);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        boolean threw = true;
+        try {
+            Map<String, Multimap<String, String>> types = ImmutableMap.copyOf(caches);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(types.size());
+            for (Map.Entry<String, Multimap<String, String>> type : types.entrySet()) {
+                writeString(out, type.getKey());
+                Map<String, Collection<String>> keys = ImmutableMap.copyOf(type.getValue().asMap());
+                out.writeInt(keys.size());
+                for (Map.Entry<String, Collection<String>> key : keys.entrySet()) {
+                    Collection<String> values = ImmutableSet.copyOf(key.getValue());
+                    writeString(out, key.getKey());
+                    out.writeInt(values.size());
+                    for (String value : values) {
+                        writeString(out, value);
+                    }
+                }
+            }
+            threw = false;
+        } finally {
+            Closeables.close(out, threw);
+        }
+        if (tmp.renameTo(file)) {
+            return;
+        }
+        //Rename does not replace an existing file on all platforms. The old snapshot is kept until the new one is in
+        //place, so that a crash in between leaves the old one behind, which load() falls back to.
+        File old = previousFile(file);
+        if (old.exists() && !old.delete()) {
+            throw new IOException("Could not delete: " + old);
+        }
+        if (file.exists() && !file.renameTo(old)) {
+            throw new IOException("Could not rename " + file + " to " + old);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+        old.delete();
+    }
+
+    /**
+     * Loads the caches from the file into the {@link CacheProvider}.
+     * A missing file, a file of a different version or a corrupt file is ignored. The file is read in full before
+     * anything is put into the caches, so that a corrupt file never leaves a partial load behind.
+     * @param file
+     * @param cacheProvider
+     * @return the number of values that were loaded.
+     */
+    public static int load(File file, CacheProvider cacheProvider) {
+        if (file != null && !file.isFile() && previousFile(file).isFile()) {
+            //A crash interrupted the replacement of the snapshot.
+            file = previousFile(file);
+        }
+        if (file == null || !file.isFile()) {
+            return 0;
+        }
+        Map<String, Map<String, List<String>>> types = new LinkedHashMap<String, Map<String, List<String>>>();
+        int count = 0;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+                LOGGER.warn("Ignoring cache snapshot {}, it is not a cache snapshot.", file);
+                return 0;
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                LOGGER.warn("Ignoring cache snapshot {} of version {}.", file, version);
+                return 0;
+            }
+            int typeCount = readCount(buffer);
+            for (int t = 0; t < typeCount; t++) {
+                Map<String, List<String>> keys = new LinkedHashMap<String, List<String>>();
+                types.put(readString(buffer), keys);
+                int keyCount = readCount(buffer);
+                for (int k = 0; k < keyCount; k++) {
+                    String key = readString(buffer);
+                    int size = readCount(buffer);
+                    List<String> values = new ArrayList<String>(size);
+                    for (int v = 0; v < size; v++) {
+                        values.add(readString(buffer));
+                    }
+                    keys.put(key, values);
+                    count += size;
+                }
+            }
+        } catch (Exception ex) {
+            LOGGER.warn("Ignoring cache snapshot " + file + ":" + ex.getMessage());
+            return 0;
+        } finally {
+            try {
+                Closeables.close(raf, true);
+            } catch (IOException e) {
+                //noop
+            }
+        }
+        for (Map.Entry<String, Map<String, List<String>>> type : types.entrySet()) {
+            Multimap<String, String> cache = cacheProvider.getProviderCacheForType(type.getKey());
+            for (Map.Entry<String, List<String>> key : type.getValue().entrySet()) {
+                cache.putAll(key.getKey(), key.getValue());
+            }
+        }
+        return count;
+    }
+
+    private static File previousFile(File file) {
+        return new File(file.getPath() + ".old");
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads the number of the items that follow, each of which takes at least an int.
+     * @param buffer
+     * @return
+     * @throws IOException if the number does not fit into the rest of the file.
+     */
+    private static int readCount(ByteBuffer buffer) throws IOException {
+        int count = readLength(buffer);
+        if (count > buffer.remaining() / 4) {
+            throw new IOException("Corrupt count " + count + " at " + buffer.position());
+        }
+        return count;
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = readLength(buffer);
+        if (length > buffer.remaining()) {
+            throw new IOException("Corrupt string length " + length + " at " + buffer.position());
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private static int readLength(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 4) {
+            throw new IOException("Truncated at " + buffer.position());
+        }
+        int length = buffer.getInt();
+        if (length < 0) {
+            throw new IOException("Corrupt length " + length + " at " + (buffer.position() - 4));
+        }
+        return length;
+    }
+}
@@ -19,16 +19,27 @@
 
 package org.jclouds.karaf.cache.utils;
 
+import com.google.common.collect.Multimap;
 import org.jclouds.karaf.cache.CacheManager;
 import org.jclouds.karaf.cache.Cacheable;
+import org.jclouds.karaf.cache.EvictingSetMultimap;
+import org.jclouds.karaf.cache.RangeIndexed;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
 import org.osgi.util.tracker.ServiceTracker;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
 public class CacheUtils {
 
+    public static final String CACHE_TYPE = "cache-type";
+    public static final String COMPLETER_TYPE = "completer-type";
+
     private CacheUtils() {
         //Utility Class
     }
@@ -75,7 +86,7 @@ public class CacheUtils {
             public Object addingService(ServiceReference reference) {
                 Object service = super.addingService(reference);
                 if (Cacheable.class.isAssignableFrom(service.getClass())) {
-                    cacheManager.bindCacheable((Cacheable) service);
+                    cacheManager.bindCacheable((Cacheable) service, (String) reference.getProperty(COMPLETER_TYPE));
                 }
                 return service;
             }
@@ -89,4 +100,95 @@ public class CacheUtils {
             }
         };
     }
+
+    /**
+     * Swaps the values cached under the key with the snapshot.
+     * The snapshot is first compared to the cached values and the cache is only written if values have been added
+     * or removed. The new values are swapped in with a single {@link Multimap#replaceValues(Object, Iterable)},
+     * which a {@link org.jclouds.karaf.cache.ConcurrentSetMultimap} applies atomically, so readers see either the
+     * old or the new values. Concurrent swaps of the same cache are serialized on the lock of the cache.
+     * An {@link EvictingSetMultimap} compares the snapshot with the last snapshot it was given instead, so that the
+     * values that it evicted are not loaded again and don't count as changes.
+     * @param cache
+     * @param key
+     * @param snapshot
+     * @return the number of values that were added or removed.
+     */
+    @SuppressWarnings("unchecked")
+    public static int applyDelta(Multimap<String, String> cache, String key, Set<String> snapshot) {
+        if (cache instanceof EvictingSetMultimap) {
+            return ((EvictingSetMultimap<String, String>) cache).applySnapshot(key, snapshot);
+        }
+        synchronized (cache) {
+            Collection<String> cached = cache.get(key);
+            int changes = 0;
+            for (String value : cached) {
+                if (!snapshot.contains(value)) {
+                    changes++;
+                }
+            }
+            for (String value : snapshot) {
+                if (!cached.contains(value)) {
+                    changes++;
+                }
+            }
+            if (changes > 0) {
+                if (snapshot.isEmpty()) {
+                    cache.removeAll(key);
+                } else {
+                    cache.replaceValues(key, snapshot);
+                }
+            }
+            return changes;
+        }
+    }
+
+    /**
+     * Finds the cached values that start with the prefix.
+     * Caches that are {@link RangeIndexed} answer with a range lookup, which is what counts as an access for caches
+     * that expire unused values, other caches are scanned.
+     * @param cache
+     * @param key    the key whose values are searched or null to search the values of all keys.
+     * @param prefix the prefix or null to match all values.
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public static Collection<String> findByPrefix(Multimap<String, String> cache, String key, String prefix) {
+        if (prefix == null) {
+            prefix = "";
+        }
+        if (cache instanceof RangeIndexed) {
+            RangeIndexed<String, String> index = (RangeIndexed<String, String>) cache;
+            String upperBound = prefix.isEmpty() ? null : prefixUpperBound(prefix);
+            if (prefix.isEmpty() || upperBound != null) {
+                return index.range(key, prefix, upperBound);
+            }
+        }
+        if (prefix.isEmpty()) {
+            return key != null ? cache.get(key) : cache.values();
+        }
+        List<String> result = new ArrayList<String>();
+        for (String value : key != null ? cache.get(key) : cache.values()) {
+            if (value.startsWith(prefix)) {
+                result.add(value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the smallest string that is greater than all strings that start with the prefix,
+     * or null if there is none (the prefix consists of {@link Character#MAX_VALUE} only).
+     * @param prefix
+     * @return
+     */
+    private static String prefixUpperBound(String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE) {
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
+        return null;
+    }
 }
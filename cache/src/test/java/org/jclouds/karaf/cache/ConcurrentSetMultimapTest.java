@@ -0,0 +1,127 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jclouds.karaf.cache;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentSetMultimapTest {
+
+    @Test
+    public void testPutAndRemove() {
+        ConcurrentSetMultimap<String, String> multimap = ConcurrentSetMultimap.create();
+        assertTrue(multimap.put("key", "b"));
+        assertTrue(multimap.put("key", "a"));
+        assertFalse(multimap.put("key", "a"));
+        assertEquals(2, multimap.size());
+        assertEquals(Arrays.asList("a", "b"), ImmutableSet.copyOf(multimap.get("key")).asList());
+
+        assertTrue(multimap.remove("key", "a"));
+        assertTrue(multimap.remove("key", "b"));
+        assertFalse(multimap.remove("key", "b"));
+        assertFalse(multimap.containsKey("key"));
+        assertTrue(multimap.isEmpty());
+        assertTrue(multimap.keySet().isEmpty());
+    }
+
+    @Test
+    public void testValuesAreInterned() {
+        ConcurrentSetMultimap<String, String> multimap = ConcurrentSetMultimap.create();
+        String value = new String("value");
+        multimap.put("first", value);
+        multimap.put("second", new String("value"));
+        assertSame(multimap.get("first").iterator().next(), multimap.get("second").iterator().next());
+    }
+
+    @Test
+    public void testReplaceValues() {
+        ConcurrentSetMultimap<String, String> multimap = ConcurrentSetMultimap.create();
+        multimap.putAll("key", Arrays.asList("a", "b"));
+        Set<String> view = multimap.get("key");
+        Set<String> old = multimap.replaceValues("key", Arrays.asList("c", "d"));
+        assertEquals(ImmutableSet.of("a", "b"), old);
+        assertEquals(ImmutableSet.of("c", "d"), view);
+        assertEquals(ImmutableSet.of("c", "d"), multimap.get("key"));
+    }
+
+    @Test
+    public void testRange() {
+        ConcurrentSetMultimap<String, String> multimap = ConcurrentSetMultimap.create();
+        multimap.putAll("first", Arrays.asList("img-1", "img-2", "vol-1"));
+        multimap.putAll("second", Arrays.asList("img-3", "snap-1"));
+        assertEquals(ImmutableSet.of("img-1", "img-2"), multimap.range("first", "img-", "img."));
+        assertEquals(ImmutableSet.of("img-1", "img-2", "img-3"), multimap.range(null, "img-", "img."));
+        assertEquals(ImmutableSet.of("snap-1", "vol-1"), multimap.range(null, "s", null));
+        assertTrue(multimap.range("missing", "a", null).isEmpty());
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        ConcurrentSetMultimap<String, String> multimap = ConcurrentSetMultimap.create();
+        multimap.putAll("key", Arrays.asList("a", "b"));
+        for (Iterator<String> iterator = multimap.get("key").iterator(); iterator.hasNext(); ) {
+            iterator.next();
+            iterator.remove();
+        }
+        assertFalse(multimap.containsKey("key"));
+    }
+
+    @Test
+    public void testConcurrentPutAndRemove() throws InterruptedException {
+        final ConcurrentSetMultimap<String, String> multimap = ConcurrentSetMultimap.create();
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int thread = 0; thread < threads; thread++) {
+            final String prefix = "t" + thread + "-";
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        String value = prefix + (i % 50);
+                        multimap.put("key", value);
+                        if (i % 3 != 0) {
+                            multimap.remove("key", value);
+                        }
+                    }
+                    for (int i = 0; i < 50; i++) {
+                        multimap.put("key", prefix + i);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        assertEquals(threads * 50, multimap.get("key").size());
+        assertEquals(50, multimap.range("key", "t3-", "t3.").size());
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jclouds.karaf.cache;
+
+import com.google.common.cache.CacheBuilderSpec;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EvictingSetMultimapTest {
+
+    @Test
+    public void testMaximumSize() {
+        EvictingSetMultimap<String, String> multimap = new EvictingSetMultimap<String, String>(
+                CacheBuilderSpec.parse("maximumSize=2,concurrencyLevel=1"));
+        multimap.put("key", "a");
+        multimap.put("key", "b");
+        multimap.put("key", "c");
+        assertEquals(2, multimap.get("key").size());
+        assertFalse(multimap.containsEntry("key", "a"));
+        assertEquals(1, multimap.getEvictionCount());
+    }
+
+    @Test
+    public void testMaximumSizeCountsDistinctValues() {
+        EvictingSetMultimap<String, String> multimap = new EvictingSetMultimap<String, String>(
+                CacheBuilderSpec.parse("maximumSize=2,concurrencyLevel=1"));
+        multimap.putAll("context", Arrays.asList("a", "b"));
+        multimap.putAll("provider", Arrays.asList("a", "b"));
+        assertEquals(4, multimap.size());
+        assertEquals(0, multimap.getEvictionCount());
+
+        //An evicted value is removed from all keys.
+        multimap.put("context", "c");
+        assertEquals(1, multimap.getEvictionCount());
+        assertFalse(multimap.containsEntry("context", "a"));
+        assertFalse(multimap.containsEntry("provider", "a"));
+    }
+
+    @Test
+    public void testEvictedValuesAreNotLoadedAgain() {
+        EvictingSetMultimap<String, String> multimap = new EvictingSetMultimap<String, String>(
+                CacheBuilderSpec.parse("maximumSize=2,concurrencyLevel=1"));
+        assertEquals(3, multimap.applySnapshot("key", ImmutableSet.of("a", "b", "c")));
+        assertEquals(2, multimap.get("key").size());
+        assertEquals(1, multimap.getEvictionCount());
+
+        assertEquals(0, multimap.applySnapshot("key", ImmutableSet.of("a", "b", "c")));
+        assertEquals(2, multimap.get("key").size());
+        assertEquals(1, multimap.getEvictionCount());
+
+        //Only the values that are new to the source are loaded.
+        assertEquals(1, multimap.applySnapshot("key", ImmutableSet.of("a", "b", "c", "d")));
+        assertTrue(multimap.containsEntry("key", "d"));
+        assertEquals(2, multimap.getEvictionCount());
+    }
+
+    @Test
+    public void testRemovedValuesAreLoadedAgain() {
+        EvictingSetMultimap<String, String> multimap = new EvictingSetMultimap<String, String>(
+                CacheBuilderSpec.parse("maximumSize=10"));
+        assertEquals(2, multimap.applySnapshot("key", ImmutableSet.of("a", "b")));
+        assertTrue(multimap.remove("key", "a"));
+        assertEquals(1, multimap.applySnapshot("key", ImmutableSet.of("a", "b")));
+        assertEquals(ImmutableSet.of("a", "b"), multimap.get("key"));
+    }
+
+    @Test
+    public void testUnboundedSnapshotsAreAppliedInFull() {
+        EvictingSetMultimap<String, String> multimap = new EvictingSetMultimap<String, String>(CacheBuilderSpec.parse(""));
+        assertEquals(2, multimap.applySnapshot("key", ImmutableSet.of("a", "b")));
+        assertEquals(0, multimap.applySnapshot("key", ImmutableSet.of("a", "b")));
+        assertEquals(2, multimap.applySnapshot("key", ImmutableSet.of("b", "c")));
+        assertEquals(ImmutableSet.of("b", "c"), multimap.get("key"));
+        assertEquals(2, multimap.applySnapshot("key", ImmutableSet.<String>of()));
+        assertTrue(multimap.isEmpty());
+    }
+
+    @Test
+    public void testRemovedValuesAreNotCountedAsEvicted() {
+        EvictingSetMultimap<String, String> multimap = new EvictingSetMultimap<String, String>(
+                CacheBuilderSpec.parse("maximumSize=2,concurrencyLevel=1"));
+        multimap.putAll("key", Arrays.asList("a", "b"));
+        multimap.remove("key", "a");
+        multimap.replaceValues("key", Arrays.asList("c"));
+        multimap.put("key", "d");
+        assertEquals(ImmutableSet.of("c", "d"), multimap.get("key"));
+        assertEquals(0, multimap.getEvictionCount());
+    }
+
+    @Test
+    public void testConfigureShrinksTheCache() {
+        EvictingSetMultimap<String, String> multimap = new EvictingSetMultimap<String, String>(
+                CacheBuilderSpec.parse("maximumSize=10,concurrencyLevel=1"));
+        multimap.putAll("key", Arrays.asList("a", "b", "c"));
+        multimap.configure(CacheBuilderSpec.parse("maximumSize=1,concurrencyLevel=1"));
+        assertEquals(1, multimap.get("key").size());
+        assertEquals(2, multimap.getEvictionCount());
+    }
+
+    @Test
+    public void testRangeLookupsCountAsAccess() throws InterruptedException {
+        EvictingSetMultimap<String, String> multimap = new EvictingSetMultimap<String, String>(
+                CacheBuilderSpec.parse("expireAfterAccess=1s"));
+        multimap.putAll("key", Arrays.asList("img-1", "vol-1"));
+        Thread.sleep(600);
+        assertEquals(ImmutableSet.of("img-1"), multimap.range("key", "img-", "img."));
+        //Putting and iterating over the values doesn't keep them alive.
+        multimap.put("key", "vol-1");
+        assertEquals(2, multimap.get("key").size());
+        Thread.sleep(600);
+        assertEquals(ImmutableSet.of("img-1"), multimap.get("key"));
+        assertTrue(multimap.getEvictionCount() > 0);
+    }
+}
@@ -0,0 +1,277 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jclouds.karaf.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RefreshEngineTest {
+
+    private ScheduledExecutorService watchdog;
+    private RefreshLimits limits;
+
+    @Before
+    public void setUp() throws Exception {
+        watchdog = Executors.newSingleThreadScheduledExecutor();
+        limits = new RefreshLimits();
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("rate", "1000");
+        properties.put("breaker.failures", "1");
+        limits.updated(properties);
+    }
+
+    @After
+    public void tearDown() {
+        watchdog.shutdownNow();
+    }
+
+    @Test
+    public void testDuplicateUpdatesAreCoalesced() throws Exception {
+        RefreshEngine<FakeService> engine = new RefreshEngine<FakeService>(1, 1, 10000, watchdog, limits);
+        try {
+            FakeService service = new FakeService("provider");
+            FakeCacheable blocked = new FakeCacheable("blocked");
+            FakeCacheable cacheable = new FakeCacheable("cacheable");
+            engine.submit(service, blocked);
+            assertTrue(blocked.started.await(5, TimeUnit.SECONDS));
+
+            Future<Integer> first = engine.submit(service, cacheable);
+            Future<Integer> second = engine.submit(service, cacheable);
+            assertSame(first, second);
+            assertEquals(1, engine.getCoalescedCount());
+
+            blocked.release.countDown();
+            cacheable.release.countDown();
+            assertEquals(Integer.valueOf(1), first.get(5, TimeUnit.SECONDS));
+            assertEquals(1, cacheable.calls.get());
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testMaxPerProviderIsHeldByRunningUpdate() throws Exception {
+        RefreshEngine<FakeService> engine = new RefreshEngine<FakeService>(2, 1, 10000, watchdog, limits);
+        try {
+            FakeService service = new FakeService("provider");
+            FakeService other = new FakeService("other");
+            FakeCacheable blocked = new FakeCacheable("blocked");
+            FakeCacheable waiting = new FakeCacheable("waiting");
+            FakeCacheable unrelated = new FakeCacheable("unrelated");
+            unrelated.release.countDown();
+
+            engine.submit(service, blocked);
+            assertTrue(blocked.started.await(5, TimeUnit.SECONDS));
+            Future<Integer> waitingFuture = engine.submit(service, waiting);
+            Future<Integer> unrelatedFuture = engine.submit(other, unrelated);
+
+            //The other provider is not held back by the blocked one.
+            unrelatedFuture.get(5, TimeUnit.SECONDS);
+            assertFalse(waiting.started.await(200, TimeUnit.MILLISECONDS));
+
+            waiting.release.countDown();
+            blocked.release.countDown();
+            waitingFuture.get(5, TimeUnit.SECONDS);
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testPriorityUpdatesRunFirst() throws Exception {
+        RefreshEngine<FakeService> engine = new RefreshEngine<FakeService>(1, 1, 10000, watchdog, limits);
+        try {
+            FakeService service = new FakeService("provider");
+            List<String> order = Collections.synchronizedList(new ArrayList<String>());
+            FakeCacheable blocked = new FakeCacheable("blocked", order);
+            engine.submit(service, blocked);
+            assertTrue(blocked.started.await(5, TimeUnit.SECONDS));
+
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (String name : Arrays.asList("first", "second")) {
+                FakeCacheable cacheable = new FakeCacheable(name, order);
+                cacheable.release.countDown();
+                futures.add(engine.submit(service, cacheable));
+            }
+            FakeCacheable promoted = new FakeCacheable("promoted", order);
+            promoted.release.countDown();
+            futures.add(engine.submit(service, promoted));
+            futures.add(engine.submit(service, promoted, true));
+
+            blocked.release.countDown();
+            for (Future<Integer> future : futures) {
+                future.get(5, TimeUnit.SECONDS);
+            }
+            assertEquals(Arrays.asList("blocked", "promoted", "first", "second"), order);
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testOpenCircuitRejectsBackgroundUpdates() throws Exception {
+        RefreshEngine<FakeService> engine = new RefreshEngine<FakeService>(1, 1, 10000, watchdog, limits);
+        try {
+            FakeService service = new FakeService("provider");
+            FakeCacheable failing = new FakeCacheable("failing");
+            failing.fail = true;
+            failing.release.countDown();
+            try {
+                engine.submit(service, failing).get(5, TimeUnit.SECONDS);
+                fail("The update should have failed");
+            } catch (ExecutionException ex) {
+                //expected
+            }
+            awaitState(engine, service, failing, CircuitBreaker.State.OPEN);
+
+            try {
+                engine.submit(service, failing).get(5, TimeUnit.SECONDS);
+                fail("The circuit breaker should have rejected the update");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof RejectedExecutionException);
+            }
+            assertEquals(1, failing.calls.get());
+
+            //A priority update still goes through and closes the breaker.
+            failing.fail = false;
+            assertEquals(Integer.valueOf(1), engine.submit(service, failing, true).get(5, TimeUnit.SECONDS));
+            awaitState(engine, service, failing, CircuitBreaker.State.CLOSED);
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testTimedOutUpdateIsCancelled() throws Exception {
+        RefreshEngine<FakeService> engine = new RefreshEngine<FakeService>(1, 1, 100, watchdog, limits);
+        try {
+            FakeService service = new FakeService("provider");
+            FakeCacheable blocked = new FakeCacheable("blocked");
+            Future<Integer> future = engine.submit(service, blocked);
+            assertTrue(blocked.started.await(5, TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!future.isDone() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(future.isCancelled());
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    /**
+     * Waits for the breaker, which is updated once the future of the update has completed.
+     */
+    private static void awaitState(RefreshEngine<FakeService> engine, FakeService service, FakeCacheable cacheable,
+                                   CircuitBreaker.State state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (engine.getCircuitState(service, cacheable) != state && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(state, engine.getCircuitState(service, cacheable));
+    }
+
+    public static class FakeService {
+        private final String id;
+
+        public FakeService(String id) {
+            this.id = id;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return id;
+        }
+    }
+
+    private static class FakeCacheable implements Cacheable<FakeService> {
+        private final String name;
+        private final List<String> order;
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger calls = new AtomicInteger();
+        private volatile boolean fail;
+
+        private FakeCacheable(String name) {
+            this(name, Collections.synchronizedList(new ArrayList<String>()));
+        }
+
+        private FakeCacheable(String name, List<String> order) {
+            this.name = name;
+            this.order = order;
+        }
+
+        @Override
+        public void updateOnAdded(FakeService service) {
+        }
+
+        @Override
+        public void updateOnRemoved(FakeService service) {
+        }
+
+        @Override
+        public Set<String> snapshot(FakeService service) {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public int refresh(FakeService service) {
+            calls.incrementAndGet();
+            order.add(name);
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+            if (fail) {
+                throw new IllegalStateException("Refresh of " + name + " failed");
+            }
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jclouds.karaf.cache;
+
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.rest.AuthorizationException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RefreshSchedulerTest {
+
+    private static final long MIN_INTERVAL = 100;
+    private static final long INITIAL_INTERVAL = 1000;
+    private static final long MAX_INTERVAL = 10000;
+
+    private ScheduledExecutorService watchdog;
+    private RefreshEngine<RefreshEngineTest.FakeService> engine;
+    private RecordingExecutor executor;
+    private RefreshScheduler<RefreshEngineTest.FakeService> scheduler;
+    private final RefreshEngineTest.FakeService service = new RefreshEngineTest.FakeService("provider");
+
+    @Before
+    public void setUp() throws Exception {
+        watchdog = Executors.newSingleThreadScheduledExecutor();
+        RefreshLimits limits = new RefreshLimits();
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("rate", "1000");
+        limits.updated(properties);
+        engine = new RefreshEngine<RefreshEngineTest.FakeService>(1, 1, 10000, watchdog, limits);
+        executor = new RecordingExecutor();
+        scheduler = new RefreshScheduler<RefreshEngineTest.FakeService>(engine, executor, MIN_INTERVAL, INITIAL_INTERVAL, MAX_INTERVAL);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+        engine.shutdown();
+        executor.shutdownNow();
+        watchdog.shutdownNow();
+    }
+
+    @Test
+    public void testIntervalIsHalvedWhenTheCacheChanged() throws Exception {
+        scheduler.refresh(service, new FixedCacheable(5));
+        assertDelay(INITIAL_INTERVAL / 2, executor.nextDelay());
+    }
+
+    @Test
+    public void testIntervalIsDoubledWhenTheCacheDidNotChange() throws Exception {
+        scheduler.refresh(service, new FixedCacheable(0));
+        assertDelay(INITIAL_INTERVAL * 2, executor.nextDelay());
+    }
+
+    @Test
+    public void testIntervalIsKeptWhenTheRefreshWasDeferred() throws Exception {
+        scheduler.refresh(service, new FixedCacheable(LazyCacheable.DEFERRED));
+        assertDelay(INITIAL_INTERVAL, executor.nextDelay());
+    }
+
+    @Test
+    public void testIntervalStaysWithinBounds() throws Exception {
+        FixedCacheable cacheable = new FixedCacheable(5);
+        for (int i = 0; i < 6; i++) {
+            scheduler.refresh(service, cacheable);
+            executor.nextDelay();
+        }
+        assertDelay(MIN_INTERVAL, executor.lastDelay);
+    }
+
+    @Test
+    public void testThrottledRefreshBacksOff() throws Exception {
+        FixedCacheable cacheable = new FixedCacheable(0);
+        cacheable.failure = new HttpResponseException("Too many requests", null, HttpResponse.builder().statusCode(429).build());
+        scheduler.refresh(service, cacheable);
+        assertDelay(INITIAL_INTERVAL * 2, executor.nextDelay());
+        scheduler.refresh(service, cacheable);
+        assertDelay(INITIAL_INTERVAL * 4, executor.nextDelay());
+    }
+
+    @Test
+    public void testOtherFailuresKeepTheInterval() throws Exception {
+        FixedCacheable cacheable = new FixedCacheable(0);
+        cacheable.failure = new IllegalStateException("Boom");
+        scheduler.refresh(service, cacheable);
+        assertDelay(INITIAL_INTERVAL, executor.nextDelay());
+    }
+
+    @Test
+    public void testCancelStopsTheRefreshes() throws Exception {
+        FixedCacheable cacheable = new FixedCacheable(0);
+        scheduler.refresh(service, cacheable);
+        executor.nextDelay();
+        assertFalse(executor.lastScheduled.isCancelled());
+        scheduler.cancel(cacheable);
+        assertTrue(executor.lastScheduled.isCancelled());
+        assertEquals(1, cacheable.calls.get());
+    }
+
+    @Test
+    public void testIsThrottledOrUnauthorized() {
+        assertTrue(RefreshScheduler.isThrottledOrUnauthorized(new RuntimeException(new AuthorizationException())));
+        assertTrue(RefreshScheduler.isThrottledOrUnauthorized(
+                new HttpResponseException("Unavailable", null, HttpResponse.builder().statusCode(503).build())));
+        assertFalse(RefreshScheduler.isThrottledOrUnauthorized(
+                new HttpResponseException("Not found", null, HttpResponse.builder().statusCode(404).build())));
+        assertFalse(RefreshScheduler.isThrottledOrUnauthorized(new IllegalStateException()));
+    }
+
+    private static void assertDelay(long expected, Long actual) {
+        assertTrue("No refresh was scheduled", actual != null);
+        assertTrue("Expected a delay of about " + expected + " ms, but was " + actual + " ms",
+                actual >= expected * 0.8 && actual <= expected * 1.2);
+    }
+
+    /**
+     * Records the delays of the scheduled refreshes instead of running them.
+     */
+    private static class RecordingExecutor extends ScheduledThreadPoolExecutor {
+
+        private final BlockingQueue<Long> delays = new LinkedBlockingQueue<Long>();
+        private volatile Long lastDelay;
+        private volatile ScheduledFuture<?> lastScheduled;
+
+        private RecordingExecutor() {
+            super(1);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            lastScheduled = super.schedule(command, 1, TimeUnit.DAYS);
+            delays.add(unit.toMillis(delay));
+            return lastScheduled;
+        }
+
+        private Long nextDelay() throws InterruptedException {
+            lastDelay = delays.poll(5, TimeUnit.SECONDS);
+            return lastDelay;
+        }
+    }
+
+    private static class FixedCacheable implements Cacheable<RefreshEngineTest.FakeService> {
+        private final int changes;
+        private final AtomicInteger calls = new AtomicInteger();
+        private volatile RuntimeException failure;
+
+        private FixedCacheable(int changes) {
+            this.changes = changes;
+        }
+
+        @Override
+        public void updateOnAdded(RefreshEngineTest.FakeService service) {
+        }
+
+        @Override
+        public void updateOnRemoved(RefreshEngineTest.FakeService service) {
+        }
+
+        @Override
+        public Set<String> snapshot(RefreshEngineTest.FakeService service) {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public int refresh(RefreshEngineTest.FakeService service) {
+            calls.incrementAndGet();
+            if (failure != null) {
+                throw failure;
+            }
+            return changes;
+        }
+    }
+}
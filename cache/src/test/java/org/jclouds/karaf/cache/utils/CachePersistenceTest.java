@@ -0,0 +1,176 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jclouds.karaf.cache.utils;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimap;
+import com.google.common.io.Files;
+import org.jclouds.karaf.cache.CacheProvider;
+import org.jclouds.karaf.cache.ConcurrentCacheProvider;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CachePersistenceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        File file = new File(folder.getRoot(), "jclouds/caches.bin");
+        Map<String, Multimap<String, String>> caches = new HashMap<String, Multimap<String, String>>();
+        Multimap<String, String> images = HashMultimap.create();
+        images.put("aws-ec2", "ami-1");
+        images.put("aws-ec2", "ami-\u00e9");
+        images.put("my-context", "ami-1");
+        caches.put("image", images);
+        Multimap<String, String> locations = HashMultimap.create();
+        locations.put("aws-ec2", "us-east-1");
+        caches.put("location", locations);
+
+        CachePersistence.save(file, caches);
+        assertTrue(file.isFile());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        CacheProvider cacheProvider = new ConcurrentCacheProvider();
+        assertEquals(4, CachePersistence.load(file, cacheProvider));
+        assertEquals(ImmutableSet.of("ami-1", "ami-\u00e9"), cacheProvider.getProviderCacheForType("image").get("aws-ec2"));
+        assertEquals(ImmutableSet.of("ami-1"), cacheProvider.getProviderCacheForType("image").get("my-context"));
+        assertEquals(ImmutableSet.of("us-east-1"), cacheProvider.getProviderCacheForType("location").get("aws-ec2"));
+    }
+
+    @Test
+    public void testSaveReplacesTheSnapshot() throws Exception {
+        File file = folder.newFile("caches.bin");
+        Map<String, Multimap<String, String>> caches = new HashMap<String, Multimap<String, String>>();
+        Multimap<String, String> images = HashMultimap.create();
+        images.put("aws-ec2", "ami-1");
+        caches.put("image", images);
+        CachePersistence.save(file, caches);
+        images.put("aws-ec2", "ami-2");
+        CachePersistence.save(file, caches);
+
+        CacheProvider cacheProvider = new ConcurrentCacheProvider();
+        assertEquals(2, CachePersistence.load(file, cacheProvider));
+    }
+
+    @Test
+    public void testMissingFileIsIgnored() {
+        assertEquals(0, CachePersistence.load(new File(folder.getRoot(), "missing.bin"), new ConcurrentCacheProvider()));
+        assertEquals(0, CachePersistence.load(null, new ConcurrentCacheProvider()));
+    }
+
+    @Test
+    public void testForeignFileIsIgnored() throws Exception {
+        File file = folder.newFile("caches.bin");
+        Files.write("not a snapshot".getBytes("UTF-8"), file);
+        assertEquals(0, CachePersistence.load(file, new ConcurrentCacheProvider()));
+    }
+
+    @Test
+    public void testOtherVersionIsIgnored() throws Exception {
+        File file = folder.newFile("caches.bin");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.writeInt(CachePersistence.MAGIC);
+            raf.writeInt(CachePersistence.VERSION + 1);
+            raf.writeInt(0);
+        } finally {
+            raf.close();
+        }
+        assertEquals(0, CachePersistence.load(file, new ConcurrentCacheProvider()));
+    }
+
+    @Test
+    public void testTruncatedFileIsIgnored() throws Exception {
+        File file = folder.newFile("caches.bin");
+        Map<String, Multimap<String, String>> caches = new HashMap<String, Multimap<String, String>>();
+        Multimap<String, String> images = HashMultimap.create();
+        images.put("aws-ec2", "ami-1");
+        images.put("my-context", "ami-2");
+        caches.put("image", images);
+        CachePersistence.save(file, caches);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 2);
+        } finally {
+            raf.close();
+        }
+        CacheProvider cacheProvider = new ConcurrentCacheProvider();
+        assertEquals(0, CachePersistence.load(file, cacheProvider));
+        assertTrue(cacheProvider.getProviderCacheForType("image").isEmpty());
+    }
+
+    @Test
+    public void testCorruptLengthIsIgnored() throws Exception {
+        File file = folder.newFile("caches.bin");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.writeInt(CachePersistence.MAGIC);
+            raf.writeInt(CachePersistence.VERSION);
+            raf.writeInt(1);
+            raf.writeInt(Integer.MAX_VALUE);
+        } finally {
+            raf.close();
+        }
+        assertEquals(0, CachePersistence.load(file, new ConcurrentCacheProvider()));
+    }
+
+    @Test
+    public void testCorruptCountIsIgnored() throws Exception {
+        File file = folder.newFile("caches.bin");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.writeInt(CachePersistence.MAGIC);
+            raf.writeInt(CachePersistence.VERSION);
+            raf.writeInt(Integer.MAX_VALUE);
+        } finally {
+            raf.close();
+        }
+        assertEquals(0, CachePersistence.load(file, new ConcurrentCacheProvider()));
+    }
+
+    @Test
+    public void testPreviousSnapshotIsLoadedIfTheReplacementWasInterrupted() throws Exception {
+        File file = new File(folder.getRoot(), "caches.bin");
+        Map<String, Multimap<String, String>> caches = new HashMap<String, Multimap<String, String>>();
+        Multimap<String, String> images = HashMultimap.create();
+        images.put("aws-ec2", "ami-1");
+        caches.put("image", images);
+        CachePersistence.save(file, caches);
+        assertTrue(file.renameTo(new File(file.getPath() + ".old")));
+
+        CacheProvider cacheProvider = new ConcurrentCacheProvider();
+        assertEquals(1, CachePersistence.load(file, cacheProvider));
+        assertEquals(ImmutableSet.of("ami-1"), cacheProvider.getProviderCacheForType("image").get("aws-ec2"));
+    }
+}
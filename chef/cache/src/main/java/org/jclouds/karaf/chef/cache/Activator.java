@@ -20,9 +20,8 @@
 package org.jclouds.karaf.chef.cache;
 
 import org.jclouds.chef.ChefService;
-import org.jclouds.karaf.cache.BasicCacheProvider;
 import org.jclouds.karaf.cache.CacheManager;
-import org.jclouds.karaf.cache.CacheProvider;
+import org.jclouds.karaf.cache.CacheRefresher;
 import org.jclouds.karaf.cache.utils.CacheUtils;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
@@ -36,7 +35,7 @@ public class Activator implements BundleActivator {
     private ServiceTracker chefServiceTracker;
     private ServiceTracker chefCacheableTracker;
 
-    private ServiceRegistration cacheProviderRegistration;
+    private ServiceRegistration cacheRefresherRegistration;
 
     private final CacheManager<ChefService> chefCacheManager = new CacheManager<ChefService>();
 
@@ -58,8 +57,10 @@ public class Activator implements BundleActivator {
      */
     @Override
     public void start(BundleContext context) throws Exception {
-        CacheProvider cacheProvider = new BasicCacheProvider();
-        cacheProviderRegistration = context.registerService(CacheProvider.class.getName(), cacheProvider, new Properties());
+        //The chef caches live in the CacheProvider that the jclouds cache bundle registers.
+        Properties refresherProperties = new Properties();
+        refresherProperties.put(CacheUtils.CACHE_TYPE, "jclouds.chefservice");
+        cacheRefresherRegistration = context.registerService(CacheRefresher.class.getName(), chefCacheManager, refresherProperties);
 
 
         chefServiceTracker = CacheUtils.createServiceCacheTracker(context, ChefService.class, chefCacheManager);
@@ -67,8 +68,6 @@ public class Activator implements BundleActivator {
 
         chefServiceTracker.open();
         chefCacheableTracker.open();
-        chefCacheManager.init();
-
     }
 
     /**
@@ -92,8 +91,8 @@ public class Activator implements BundleActivator {
     public void stop(BundleContext context) throws Exception {
         chefCacheManager.destroy();
 
-        if (cacheProviderRegistration != null) {
-            cacheProviderRegistration.unregister();
+        if (cacheRefresherRegistration != null) {
+            cacheRefresherRegistration.unregister();
         }
         if (chefServiceTracker != null) {
             chefServiceTracker.close();
@@ -24,8 +24,8 @@ import org.apache.karaf.shell.console.AbstractAction;
 import org.jclouds.apis.ApiMetadata;
 import org.jclouds.chef.ChefService;
 import org.jclouds.chef.domain.CookbookVersion;
-import org.jclouds.karaf.cache.BasicCacheProvider;
 import org.jclouds.karaf.cache.CacheProvider;
+import org.jclouds.karaf.cache.ConcurrentCacheProvider;
 import org.jclouds.karaf.chef.core.ChefConstants;
 import org.jclouds.karaf.commands.table.ShellTable;
 import org.jclouds.karaf.commands.table.ShellTableFactory;
@@ -49,7 +49,7 @@ public abstract class ChefCommandBase extends AbstractAction {
     public static final String FACTORY_FILTER = "(service.factoryPid=%s)";
 
     protected ConfigurationAdmin configAdmin;
-    protected CacheProvider cacheProvider = new BasicCacheProvider();
+    protected CacheProvider cacheProvider = new ConcurrentCacheProvider();
     protected List<ChefService> chefServices = new ArrayList<ChefService>();
     protected ShellTableFactory shellTableFactory = new PropertyShellTableFactory();
 
@@ -23,7 +23,9 @@ import org.apache.karaf.shell.console.Completer;
 import org.jclouds.chef.ChefService;
 import org.jclouds.chef.domain.CookbookVersion;
 import org.jclouds.karaf.chef.core.ChefConstants;
-import org.jclouds.karaf.utils.ServiceHelper;
+
+import java.util.HashSet;
+import java.util.Set;
 
 public class CookbookCompleter extends ChefCompleterSupport implements Completer {
 
@@ -32,16 +34,14 @@ public class CookbookCompleter extends ChefCompleterSupport implements Completer
     }
 
     @Override
-    public void updateOnAdded(ChefService chefService) {
-        if (chefService != null) {
-            Iterable<? extends CookbookVersion> cookbookVersions = chefService.listCookbookVersions();
-            if (cookbookVersions != null) {
-                for (CookbookVersion cookbookVersion : cookbookVersions) {
-                    for (String cacheKey : ServiceHelper.findCacheKeysForService(chefService)) {
-                        cache.putAll(cacheKey, cookbookVersion.getMetadata().getProviding().keySet());
-                    }
-                }
+    public Set<String> snapshot(ChefService chefService) {
+        Set<String> recipes = new HashSet<String>();
+        Iterable<? extends CookbookVersion> cookbookVersions = chefService.listCookbookVersions();
+        if (cookbookVersions != null) {
+            for (CookbookVersion cookbookVersion : cookbookVersions) {
+                recipes.addAll(cookbookVersion.getMetadata().getProviding().keySet());
             }
         }
+        return recipes;
     }
 }
@@ -19,12 +19,27 @@
 
 package org.jclouds.karaf.commands.blobstore;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.apache.felix.gogo.commands.Argument;
 import org.apache.felix.gogo.commands.Command;
@@ -37,18 +52,33 @@ import org.jclouds.blobstore.options.ListContainerOptions;
 
 /**
  * List blobs in a container.
+ * Blob names are printed as the pages of the listing arrive. With --parallel several containers are listed
+ * concurrently and each blob is printed as container/blob, while --sorted sorts the blobs of each container.
+ * The sort is an external merge sort, which spills sorted runs to disk, so containers of any size can be sorted.
  *
  * @author: iocanel
  */
 @Command(scope = "jclouds", name = "blobstore-list", description = "Lists blobs in a container")
 public class BlobListCommand extends BlobStoreCommandWithOptions {
 
+   //The number of pages that the parallel listings may buffer ahead of the console.
+   private static final int PAGES_PER_THREAD = 2;
+
    @Argument(index = 0, name = "containerNames", description = "The name of the container", required = false, multiValued = true)
    final Collection<String> containerNames = Lists.newArrayList();
 
    @Option(name = "-a", aliases = "--all", description = "List all containers", required = false)
    boolean listAllContainers = false;
 
+   @Option(name = "-p", aliases = "--parallel", description = "The number of containers to list concurrently", required = false)
+   int parallel = 1;
+
+   @Option(name = "-s", aliases = "--sorted", description = "Sort the blobs of each container by name", required = false)
+   boolean sorted = false;
+
+   @Option(name = "--sort-buffer", description = "The number of blob names that are sorted in memory before they are spilled to disk", required = false)
+   int sortBuffer = 100000;
+
    private static final PrintStream out = System.out;
 
    @Override
@@ -66,37 +96,238 @@ public class BlobListCommand extends BlobStoreCommandWithOptions {
          throw new CommandException("Must specify container names or --all");
       }
 
+      if (parallel > 1 && containerNames.size() > 1) {
+         listInParallel(blobStore);
+         return null;
+      }
+
       for (String containerName : containerNames) {
          out.println(containerName + ":");
          out.println();
+         if (sorted) {
+            ExternalSorter sorter = listSorted(blobStore, containerName);
+            try {
+               sorter.sorted(new ExternalSorter.Handler() {
+                  @Override
+                  public void handle(String blobName) {
+                     out.println("    " + blobName);
+                  }
+               });
+            } finally {
+               sorter.close();
+            }
+         } else {
+            list(blobStore, containerName, new PageHandler() {
+               @Override
+               public void onPage(String containerName, List<String> blobNames) {
+                  for (String blobName : blobNames) {
+                     out.println("    " + blobName);
+                  }
+               }
+            });
+         }
+         out.println();
+      }
+      return null;
+   }
 
-         ListContainerOptions options = ListContainerOptions.Builder.recursive();
-
-         while (true) {
-            PageSet<? extends StorageMetadata> blobStoreMetadatas = blobStore.list(containerName, options);
-            List<String> blobNames = Lists.newArrayList();
-
-            for (StorageMetadata blobMetadata : blobStoreMetadatas) {
-               String blobName = blobMetadata.getName();
-               cacheProvider.getProviderCacheForType("blob").put(blobMetadata.getProviderId(), blobName);
-               blobNames.add(blobName);
+   /**
+    * Lists the containers concurrently. The pages of all listings go through a bounded queue to the console,
+    * which holds back the listings when the console falls behind. In sorted mode the containers are printed in order,
+    * and the listings that complete ahead of their turn spill all their blob names to disk.
+    * @param blobStore
+    * @throws Exception
+    */
+   private void listInParallel(final BlobStore blobStore) throws Exception {
+      ExecutorService executor = Executors.newFixedThreadPool(parallel,
+              new ThreadFactoryBuilder().setNameFormat("jclouds-blobstore-list-%d").setDaemon(true).build());
+      try {
+         if (sorted) {
+            //The sorters that have not been printed yet. Once the listing is abandoned the tasks close their own sorters.
+            final List<ExternalSorter> unprinted = new ArrayList<ExternalSorter>();
+            final AtomicBoolean abandoned = new AtomicBoolean();
+            List<Future<ExternalSorter>> listings = new ArrayList<Future<ExternalSorter>>();
+            for (final String containerName : containerNames) {
+               listings.add(executor.submit(new Callable<ExternalSorter>() {
+                  @Override
+                  public ExternalSorter call() throws Exception {
+                     ExternalSorter sorter = listSorted(blobStore, containerName);
+                     //The sorter may wait for the containers before it, so it keeps nothing in memory meanwhile.
+                     try {
+                        sorter.flush();
+                     } catch (IOException e) {
+                        sorter.close();
+                        throw e;
+                     }
+                     synchronized (unprinted) {
+                        if (!abandoned.get()) {
+                           unprinted.add(sorter);
+                           return sorter;
+                        }
+                     }
+                     sorter.close();
+                     throw new CancellationException();
+                  }
+               }));
             }
+            int index = 0;
+            try {
+               for (final String containerName : containerNames) {
+                  ExternalSorter sorter = get(listings.get(index++));
+                  try {
+                     sorter.sorted(new ExternalSorter.Handler() {
+                        @Override
+                        public void handle(String blobName) {
+                           out.println(containerName + "/" + blobName);
+                        }
+                     });
+                  } finally {
+                     sorter.close();
+                  }
+               }
+            } finally {
+               //Remove the runs of the listings that were not printed, including those that complete after the cancel.
+               for (Future<ExternalSorter> listing : listings.subList(Math.max(index - 1, 0), listings.size())) {
+                  listing.cancel(true);
+               }
+               synchronized (unprinted) {
+                  abandoned.set(true);
+                  for (ExternalSorter sorter : unprinted) {
+                     sorter.close();
+                  }
+                  unprinted.clear();
+               }
+            }
+            return;
+         }
 
-            Collections.sort(blobNames);
-            for (String blobName : blobNames) {
-               out.println("    " + blobName);
+         final BlockingQueue<Page> pages = new ArrayBlockingQueue<Page>(parallel * PAGES_PER_THREAD);
+         List<Future<Void>> listings = new ArrayList<Future<Void>>();
+         for (final String containerName : containerNames) {
+            listings.add(executor.submit(new Callable<Void>() {
+               @Override
+               public Void call() throws Exception {
+                  boolean interrupted = false;
+                  try {
+                     list(blobStore, containerName, new PageHandler() {
+                        @Override
+                        public void onPage(String containerName, List<String> blobNames) throws InterruptedException {
+                           pages.put(new Page(containerName, blobNames));
+                        }
+                     });
+                  } catch (InterruptedException e) {
+                     interrupted = true;
+                     throw e;
+                  } finally {
+                     //Once interrupted nobody takes the pages any more, so waiting for room would never end.
+                     if (!interrupted && !Thread.currentThread().isInterrupted()) {
+                        pages.put(Page.END);
+                     }
+                  }
+                  return null;
+               }
+            }));
+         }
+         for (int remaining = listings.size(); remaining > 0; ) {
+            Page page = pages.take();
+            if (page == Page.END) {
+               remaining--;
+               continue;
+            }
+            for (String blobName : page.blobNames) {
+               out.println(page.containerName + "/" + blobName);
             }
+         }
+         for (Future<Void> listing : listings) {
+            get(listing);
+         }
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+
+   private static <T> T get(Future<T> future) throws Exception {
+      try {
+         return future.get();
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof Exception) {
+            throw (Exception) e.getCause();
+         }
+         throw e;
+      }
+   }
 
-            String marker = blobStoreMetadatas.getNextMarker();
-            if (marker == null) {
-               break;
+   /**
+    * Lists the blobs of the container into an {@link ExternalSorter}, which the caller has to close.
+    * @param blobStore
+    * @param containerName
+    * @return
+    * @throws Exception
+    */
+   private ExternalSorter listSorted(BlobStore blobStore, String containerName) throws Exception {
+      final ExternalSorter sorter = new ExternalSorter(new File(getTempDirectory(), "blobstore-list"), sortBuffer);
+      try {
+         list(blobStore, containerName, new PageHandler() {
+            @Override
+            public void onPage(String containerName, List<String> page) throws IOException {
+               for (String blobName : page) {
+                  sorter.add(blobName);
+               }
             }
+         });
+         return sorter;
+      } catch (Exception e) {
+         sorter.close();
+         throw e;
+      }
+   }
+
+   /**
+    * Lists the blobs of the container, handing each page to the handler as soon as it arrives.
+    * @param blobStore
+    * @param containerName
+    * @param handler
+    * @throws Exception
+    */
+   private void list(BlobStore blobStore, String containerName, PageHandler handler) throws Exception {
+      ListContainerOptions options = ListContainerOptions.Builder.recursive();
 
-            options = options.afterMarker(marker);
+      while (true) {
+         PageSet<? extends StorageMetadata> blobStoreMetadatas = blobStore.list(containerName, options);
+         List<String> blobNames = Lists.newArrayList();
+         Multimap<String, String> cached = HashMultimap.create();
+
+         for (StorageMetadata blobMetadata : blobStoreMetadatas) {
+            String blobName = blobMetadata.getName();
+            cached.put(blobMetadata.getProviderId(), blobName);
+            blobNames.add(blobName);
          }
+         //A single put per key and page, as each put of new values copies the values of the key.
+         cacheProvider.getProviderCacheForType("blob").putAll(cached);
+         handler.onPage(containerName, blobNames);
 
-         out.println();
+         String marker = blobStoreMetadatas.getNextMarker();
+         if (marker == null) {
+            break;
+         }
+
+         options = options.afterMarker(marker);
+      }
+   }
+
+   private interface PageHandler {
+      void onPage(String containerName, List<String> blobNames) throws Exception;
+   }
+
+   private static class Page {
+      private static final Page END = new Page(null, Collections.<String>emptyList());
+
+      private final String containerName;
+      private final List<String> blobNames;
+
+      private Page(String containerName, List<String> blobNames) {
+         this.containerName = containerName;
+         this.blobNames = blobNames;
       }
-      return null;
    }
 }
@@ -20,31 +20,60 @@
 package org.jclouds.karaf.commands.blobstore;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.felix.gogo.commands.Argument;
 import org.apache.felix.gogo.commands.Command;
+import org.apache.felix.gogo.commands.CommandException;
 import org.apache.felix.gogo.commands.Option;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.KeyNotFoundException;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.karaf.utils.blobstore.RangedDownloader;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
 import com.google.common.io.CharStreams;
+import com.google.common.io.Closeables;
 import com.google.common.io.Files;
 import com.google.common.io.InputSupplier;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
+ * Reads a blob to a file or the console.
+ * With --prefix and --to-dir all the blobs whose names start with the prefix are downloaded concurrently into
+ * a local directory tree.
+ *
  * @author: iocanel
  */
 @Command(scope = "jclouds", name = "blobstore-read", description = "Reads data from the blobstore")
 public class BlobReadCommand extends BlobStoreCommandWithOptions {
 
+   private static final long MB = 1024 * 1024;
+
    @Argument(index = 0, name = "containerName", description = "The name of the container", required = true, multiValued = false)
    String containerName;
 
-   @Argument(index = 1, name = "blobName", description = "The name of the blob", required = true, multiValued = false)
+   @Argument(index = 1, name = "blobName", description = "The name of the blob, not used with --prefix", required = false, multiValued = false)
    String blobName;
 
    @Argument(index = 2, name = "toFile", description = "The file to store the blob", required = false, multiValued = false)
@@ -56,10 +85,39 @@ public class BlobReadCommand extends BlobStoreCommandWithOptions {
    @Option(name = "-e", aliases = "--exists", description = "Test whether a blob exists", required = false, multiValued = false)
    boolean exists;
 
+   @Option(name = "--threads", description = "The number of byte ranges of a large blob, or of blobs with --prefix, that are downloaded concurrently", required = false, multiValued = false)
+   int threads = 4;
+
+   @Option(name = "--prefix", description = "Download all the blobs whose names start with the prefix, requires --to-dir", required = false, multiValued = false)
+   String prefix;
+
+   @Option(name = "--to-dir", description = "The directory to store the blobs downloaded with --prefix", required = false, multiValued = false)
+   String toDir;
+
+   @Option(name = "--ranged-threshold", description = "The size in MB above which a blob is downloaded as concurrent byte ranges", required = false, multiValued = false)
+   long rangedThreshold = 64;
+
+   @Option(name = "--range-size", description = "The size in MB of a byte range", required = false, multiValued = false)
+   long rangeSize = 8;
+
    @Override
    protected Object doExecute() throws Exception {
+      if (threads < 1) {
+         throw new CommandException("The number of threads must be at least 1");
+      }
       BlobStore blobStore = getBlobStore();
 
+      if (prefix != null || toDir != null) {
+         if (prefix == null || toDir == null) {
+            throw new CommandException("--prefix and --to-dir must be used together");
+         }
+         readAll(blobStore);
+         return null;
+      }
+      if (blobName == null) {
+         throw new CommandException("Must specify a blob name or --prefix");
+      }
+
       if (exists) {
           if (!blobStore.blobExists(containerName, blobName)) {
               throw new KeyNotFoundException(containerName, blobName, "while checking existence");
@@ -67,6 +125,14 @@ public class BlobReadCommand extends BlobStoreCommandWithOptions {
           return null;
       }
 
+      if (!display && threads > 1) {
+         BlobMetadata metadata = blobStore.blobMetadata(containerName, blobName);
+         if (RangedDownloader.lengthOf(metadata) > rangedThreshold * MB) {
+            readRanges(blobStore, blobName, metadata, new File(fileName), threads);
+            return null;
+         }
+      }
+
       InputSupplier<InputStream> supplier = getBlobInputStream(blobStore, containerName, blobName);
 
       if (display) {
@@ -82,4 +148,151 @@ public class BlobReadCommand extends BlobStoreCommandWithOptions {
 
       return null;
    }
+
+   /**
+    * Downloads the blob as concurrent byte ranges into a part file, which replaces the file once it is complete.
+    * Running the command again after an interruption resumes with the missing ranges.
+    * @param blobStore
+    * @param blobName
+    * @param metadata
+    * @param file
+    * @param rangeThreads the number of ranges that are downloaded concurrently.
+    * @throws IOException
+    */
+   private void readRanges(BlobStore blobStore, String blobName, BlobMetadata metadata, File file, int rangeThreads) throws IOException {
+      File part = new File(file.getPath() + ".part");
+      new RangedDownloader(rangeThreads, rangeSize * MB).download(blobStore, containerName, blobName, metadata, part);
+      if (file.exists() && !file.delete() || !part.renameTo(file)) {
+         throw new IOException("Could not move " + part + " to " + file);
+      }
+   }
+
+   /**
+    * Downloads the blobs whose names start with the prefix. The listing hands each blob to a bounded pool of threads
+    * as its page arrives. Each blob is stored under the directory with its name relative to the directory of the prefix.
+    * The threads are shared by all the blobs, so a large blob is downloaded one range at a time, which still lets
+    * an interrupted download resume.
+    * @param blobStore
+    * @throws Exception
+    */
+   private void readAll(final BlobStore blobStore) throws Exception {
+      final File root = new File(toDir).getCanonicalFile();
+      if (!root.isDirectory() && !root.mkdirs()) {
+         throw new IOException("Could not create: " + root);
+      }
+      //The canonical path of the file system root already ends with a separator.
+      String rootPath = root.getPath().endsWith(File.separator) ? root.getPath() : root.getPath() + File.separator;
+      String directory = prefix.substring(0, prefix.lastIndexOf('/') + 1);
+      final AtomicInteger downloaded = new AtomicInteger();
+      final AtomicLong bytes = new AtomicLong();
+      final List<String> failures = Collections.synchronizedList(Lists.<String>newArrayList());
+      final PrintStream out = System.out;
+      long start = System.currentTimeMillis();
+
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(threads * 2),
+            new ThreadFactoryBuilder().setNameFormat("jclouds-blobstore-read-%d").setDaemon(true).build(),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+      try {
+         ListContainerOptions options = ListContainerOptions.Builder.recursive();
+         if (directory.length() > 0) {
+            options = options.inDirectory(directory.substring(0, directory.length() - 1));
+         }
+         while (true) {
+            PageSet<? extends StorageMetadata> page = blobStore.list(containerName, options);
+            for (StorageMetadata metadata : page) {
+               final String name = metadata.getName();
+               if (metadata.getType() != StorageType.BLOB || !name.startsWith(prefix)) {
+                  continue;
+               }
+               final File file = new File(root, name.substring(directory.length())).getCanonicalFile();
+               if (!file.getPath().startsWith(rootPath)) {
+                  failures.add(name + ": outside of " + root);
+                  continue;
+               }
+               final BlobMetadata blobMetadata = metadata instanceof BlobMetadata ? (BlobMetadata) metadata : null;
+               executor.execute(new Runnable() {
+                  @Override
+                  public void run() {
+                     try {
+                        bytes.addAndGet(download(blobStore, name, blobMetadata, file));
+                        downloaded.incrementAndGet();
+                     } catch (Exception e) {
+                        failures.add(name + ": " + e);
+                     }
+                  }
+               });
+            }
+            String marker = page.getNextMarker();
+            if (marker == null) {
+               break;
+            }
+            options = options.afterMarker(marker);
+         }
+         executor.shutdown();
+         while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+            //Wait for the pending downloads.
+         }
+      } finally {
+         executor.shutdownNow();
+      }
+
+      long millis = Math.max(System.currentTimeMillis() - start, 1);
+      out.println(String.format("%d blobs, %.1f MB in %.1f s (%.1f MB/s), %d failed.", downloaded.get(),
+            (double) bytes.get() / MB, millis / 1000.0, (double) bytes.get() / MB * 1000 / millis, failures.size()));
+      if (!failures.isEmpty()) {
+         for (String failure : failures) {
+            out.println("    " + failure);
+         }
+         throw new CommandException(failures.size() + " blobs could not be downloaded");
+      }
+   }
+
+   /**
+    * Downloads a blob into a part file, which replaces the file once it is complete.
+    * Large blobs are downloaded as byte ranges, others are written through a {@link FileChannel}.
+    * @return the number of bytes written.
+    * @throws IOException if the download failed or its length differs from the listed length of the blob.
+    */
+   private long download(BlobStore blobStore, String name, BlobMetadata metadata, File file) throws IOException {
+      File parent = file.getParentFile();
+      if (!parent.isDirectory() && !parent.mkdirs()) {
+         throw new IOException("Could not create: " + parent);
+      }
+      long length = RangedDownloader.lengthOf(metadata);
+      if (length > rangedThreshold * MB) {
+         readRanges(blobStore, name, metadata, file, 1);
+         return length;
+      }
+      Blob blob = blobStore.getBlob(containerName, name);
+      if (blob == null) {
+         throw new KeyNotFoundException(containerName, name, "while getting blob");
+      }
+      if (length < 0) {
+         length = RangedDownloader.lengthOf(blob.getMetadata());
+      }
+      File part = new File(file.getPath() + ".part");
+      long written = 0;
+      InputStream input = blob.getPayload().openStream();
+      FileOutputStream output = new FileOutputStream(part);
+      try {
+         ReadableByteChannel source = Channels.newChannel(input);
+         FileChannel channel = output.getChannel();
+         long count;
+         while ((count = channel.transferFrom(source, written, MB)) > 0) {
+            written += count;
+         }
+      } finally {
+         Closeables.close(input, true);
+         output.close();
+      }
+      if (length >= 0 && written != length) {
+         part.delete();
+         throw new IOException("Downloaded " + written + " of " + length + " bytes");
+      }
+      if (file.exists() && !file.delete() || !part.renameTo(file)) {
+         throw new IOException("Could not move " + part + " to " + file);
+      }
+      return written;
+   }
 }
@@ -30,8 +30,8 @@ import org.jclouds.blobstore.KeyNotFoundException;
 import org.jclouds.blobstore.domain.Blob;
 import org.jclouds.blobstore.options.PutOptions;
 import org.jclouds.blobstore.util.BlobStoreUtils;
-import org.jclouds.karaf.cache.BasicCacheProvider;
 import org.jclouds.karaf.cache.CacheProvider;
+import org.jclouds.karaf.cache.ConcurrentCacheProvider;
 import org.jclouds.karaf.core.Constants;
 import org.jclouds.providers.ProviderMetadata;
 import org.osgi.service.cm.Configuration;
@@ -39,6 +39,7 @@ import org.osgi.service.cm.ConfigurationAdmin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
@@ -57,7 +58,7 @@ public abstract class BlobStoreCommandBase extends AbstractAction {
    public static final String PROVIDERFORMAT = "%-24s %-12s %-12s";
 
    protected List<BlobStore> blobStoreServices = new ArrayList<BlobStore>();
-   protected CacheProvider cacheProvider = new BasicCacheProvider();
+   protected CacheProvider cacheProvider = new ConcurrentCacheProvider();
    protected ConfigurationAdmin configAdmin;
 
    @Override
@@ -142,8 +143,9 @@ public abstract class BlobStoreCommandBase extends AbstractAction {
     * @param blobName
     * @param blob
     * @param options
+    * @return the ETag of the blob.
     */
-   public void write(BlobStore blobStore, String bucket, String blobName, Blob blob, PutOptions options) throws Exception {
+   public String write(BlobStore blobStore, String bucket, String blobName, Blob blob, PutOptions options) throws Exception {
       if (blobName.contains("/")) {
          String directory = BlobStoreUtils.parseDirectoryFromPath(blobName);
          if (!Strings.isNullOrEmpty(directory)) {
@@ -151,7 +153,16 @@ public abstract class BlobStoreCommandBase extends AbstractAction {
          }
       }
 
-      blobStore.putBlob(bucket, blob, options);
+      return blobStore.putBlob(bucket, blob, options);
+   }
+
+   /**
+    * Returns the directory for the temporary files of the commands, under the karaf data folder if there is one.
+    * @return
+    */
+   protected static File getTempDirectory() {
+      String data = System.getProperty("karaf.data");
+      return data != null ? new File(data, "tmp") : new File(System.getProperty("java.io.tmpdir"));
    }
 
    protected void printBlobStoreProviders(Iterable<ProviderMetadata> providers, List<BlobStore> blobStores,
@@ -0,0 +1,381 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jclouds.karaf.commands.blobstore;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.apache.felix.gogo.commands.Argument;
+import org.apache.felix.gogo.commands.Command;
+import org.apache.felix.gogo.commands.CommandException;
+import org.apache.felix.gogo.commands.Option;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.options.PutOptions;
+
+/**
+ * Synchronizes a local directory to a container.
+ * The blobs are listed once and a file is only uploaded if its MD5 differs from the ETag of its blob.
+ * Files are hashed and uploaded by a bounded pool of threads. Each upload is recorded in a journal, so that
+ * a synchronization that was interrupted resumes with the files that were not uploaded, even on blobstores whose
+ * ETags are not MD5s.
+ */
+@Command(scope = "jclouds", name = "blobstore-sync", description = "Synchronizes a local directory to a container")
+public class BlobSyncCommand extends BlobStoreCommandWithOptions {
+
+   private static final String JOURNAL_SEPARATOR = "\t";
+
+   @Argument(index = 0, name = "directory", description = "The local directory", required = true, multiValued = false)
+   String directory;
+
+   @Argument(index = 1, name = "target", description = "The name of the container, optionally followed by /prefix", required = true, multiValued = false)
+   String target;
+
+   @Option(name = "--threads", description = "The number of files that are hashed and uploaded concurrently", required = false, multiValued = false)
+   int threads = 4;
+
+   @Option(name = "--delete", description = "Remove the blobs that have no local file", required = false, multiValued = false)
+   boolean delete;
+
+   @Option(name = "--dry-run", description = "Print the changes without applying them", required = false, multiValued = false)
+   boolean dryRun;
+
+   private static final PrintStream out = System.out;
+
+   private final AtomicInteger uploaded = new AtomicInteger();
+   private final AtomicInteger unchanged = new AtomicInteger();
+   private final AtomicInteger deleted = new AtomicInteger();
+   private final List<String> failures = Collections.synchronizedList(Lists.<String>newArrayList());
+
+   @Override
+   protected Object doExecute() throws Exception {
+      File root = new File(directory);
+      if (!root.isDirectory()) {
+         throw new CommandException(directory + " is not a directory");
+      }
+      if (threads < 1) {
+         throw new CommandException("The number of threads must be at least 1");
+      }
+      String containerName = target;
+      String prefix = "";
+      int slash = target.indexOf('/');
+      if (slash > 0) {
+         containerName = target.substring(0, slash);
+         prefix = target.substring(slash + 1);
+         while (prefix.endsWith("/")) {
+            prefix = prefix.substring(0, prefix.length() - 1);
+         }
+         if (prefix.length() > 0) {
+            prefix = prefix + "/";
+         }
+      }
+
+      BlobStore blobStore = getBlobStore();
+      String providerId = blobStore.getContext().unwrap().getId();
+      boolean containerExists = blobStore.containerExists(containerName);
+      if (!containerExists) {
+         if (dryRun) {
+            out.println("create " + containerName);
+         } else {
+            blobStore.createContainerInLocation(null, containerName);
+         }
+      }
+      cacheProvider.getProviderCacheForType("container").put(providerId, containerName);
+
+      Map<String, String> etags = containerExists ? listETags(blobStore, containerName, prefix) : new HashMap<String, String>();
+      File journalFile = new File(new File(getTempDirectory(), "blobstore-sync"), Hashing.md5().hashString(
+            root.getAbsolutePath() + "|" + providerId + "|" + containerName + "/" + prefix, Charsets.UTF_8) + ".journal");
+      Journal journal = new Journal(journalFile);
+
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(threads * 2),
+            new ThreadFactoryBuilder().setNameFormat("jclouds-blobstore-sync-%d").setDaemon(true).build(),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+      try {
+         sync(executor, blobStore, containerName, prefix, root, "", etags, journal, new HashSet<String>());
+         if (delete) {
+            for (String path : etags.keySet()) {
+               executor.execute(new Removal(blobStore, containerName, prefix, path, journal));
+            }
+         }
+         executor.shutdown();
+         while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+            //Wait for the pending uploads.
+         }
+      } finally {
+         executor.shutdownNow();
+         journal.close();
+      }
+      if (failures.isEmpty() && !dryRun) {
+         journal.compact();
+      }
+
+      out.println(String.format("%d uploaded, %d unchanged, %d deleted, %d failed.",
+            uploaded.get(), unchanged.get(), deleted.get(), failures.size()));
+      if (!failures.isEmpty()) {
+         for (String failure : failures) {
+            out.println("    " + failure);
+         }
+         throw new CommandException(failures.size() + " files could not be synchronized");
+      }
+      return null;
+   }
+
+   /**
+    * Walks the directory and hands each file to the executor. The files that are found are removed from the ETags,
+    * which leaves the ETags of the orphaned blobs. A directory that has already been walked through another path
+    * (e.g. a symbolic link to a parent directory) is skipped, so that links can't make the walk loop forever.
+    */
+   private void sync(ThreadPoolExecutor executor, BlobStore blobStore, String containerName, String prefix, File dir,
+                     String path, Map<String, String> etags, Journal journal, Set<String> visited) {
+      try {
+         if (!visited.add(dir.getCanonicalPath())) {
+            return;
+         }
+      } catch (IOException e) {
+         failures.add(path + ": " + e);
+         return;
+      }
+      File[] files = dir.listFiles();
+      if (files == null) {
+         failures.add(path + ": could not list directory");
+         return;
+      }
+      for (File file : files) {
+         String filePath = path + file.getName();
+         if (file.isDirectory()) {
+            sync(executor, blobStore, containerName, prefix, file, filePath + "/", etags, journal, visited);
+         } else if (file.isFile()) {
+            executor.execute(new Upload(blobStore, containerName, prefix, filePath, file, etags.remove(filePath), journal));
+         }
+      }
+   }
+
+   /**
+    * Lists the blobs under the prefix in a single pass.
+    * @return the normalized ETags by path relative to the prefix.
+    */
+   private Map<String, String> listETags(BlobStore blobStore, String containerName, String prefix) {
+      Map<String, String> etags = new HashMap<String, String>();
+      ListContainerOptions options = ListContainerOptions.Builder.recursive();
+      if (prefix.length() > 0) {
+         options = options.inDirectory(prefix.substring(0, prefix.length() - 1));
+      }
+      while (true) {
+         PageSet<? extends StorageMetadata> page = blobStore.list(containerName, options);
+         for (StorageMetadata metadata : page) {
+            String name = metadata.getName();
+            if (metadata.getType() == StorageType.BLOB && name.startsWith(prefix)) {
+               etags.put(name.substring(prefix.length()), normalize(metadata.getETag()));
+            }
+         }
+         String marker = page.getNextMarker();
+         if (marker == null) {
+            return etags;
+         }
+         options = options.afterMarker(marker);
+      }
+   }
+
+   private static String normalize(String etag) {
+      if (etag == null) {
+         return "";
+      }
+      return etag.replace("\"", "").toLowerCase();
+   }
+
+   private class Upload implements Runnable {
+      private final BlobStore blobStore;
+      private final String containerName;
+      private final String prefix;
+      private final String path;
+      private final File file;
+      private final String etag;
+      private final Journal journal;
+
+      private Upload(BlobStore blobStore, String containerName, String prefix, String path, File file, String etag, Journal journal) {
+         this.blobStore = blobStore;
+         this.containerName = containerName;
+         this.prefix = prefix;
+         this.path = path;
+         this.file = file;
+         this.etag = etag;
+         this.journal = journal;
+      }
+
+      @Override
+      public void run() {
+         try {
+            HashCode md5 = Files.hash(file, Hashing.md5());
+            String hex = md5.toString();
+            if (etag != null && (etag.equals(hex) || journal.contains(path, hex, etag))) {
+               unchanged.incrementAndGet();
+               journal.record(path, hex, etag);
+               return;
+            }
+            if (dryRun) {
+               out.println("upload " + path);
+               uploaded.incrementAndGet();
+               return;
+            }
+            String blobName = prefix + path;
+            Blob blob = blobStore.blobBuilder(blobName).payload(Files.asByteSource(file)).contentLength(file.length())
+                  .contentMD5(md5.asBytes()).build();
+            String newETag = write(blobStore, containerName, blobName, blob, PutOptions.NONE);
+            journal.record(path, hex, normalize(newETag));
+            cacheProvider.getProviderCacheForType("blob").put(blobStore.getContext().unwrap().getId(), blobName);
+            uploaded.incrementAndGet();
+         } catch (Exception e) {
+            failures.add(path + ": " + e);
+         }
+      }
+   }
+
+   private class Removal implements Runnable {
+      private final BlobStore blobStore;
+      private final String containerName;
+      private final String prefix;
+      private final String path;
+      private final Journal journal;
+
+      private Removal(BlobStore blobStore, String containerName, String prefix, String path, Journal journal) {
+         this.blobStore = blobStore;
+         this.containerName = containerName;
+         this.prefix = prefix;
+         this.path = path;
+         this.journal = journal;
+      }
+
+      @Override
+      public void run() {
+         try {
+            if (dryRun) {
+               out.println("delete " + path);
+            } else {
+               blobStore.removeBlob(containerName, prefix + path);
+               journal.remove(path);
+            }
+            deleted.incrementAndGet();
+         } catch (Exception e) {
+            failures.add(path + ": " + e);
+         }
+      }
+   }
+
+   /**
+    * Records the MD5 and the ETag of each synchronized file, one line per file.
+    * The journal is appended to while the files are uploaded and compacted after a synchronization without failures.
+    */
+   private static class Journal {
+      private final File file;
+      private final Map<String, String[]> entries = new ConcurrentHashMap<String, String[]>();
+      private Writer writer;
+
+      private Journal(File file) throws IOException {
+         this.file = file;
+         if (file.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
+            try {
+               String line;
+               while ((line = reader.readLine()) != null) {
+                  String[] fields = line.split(JOURNAL_SEPARATOR, 3);
+                  if (fields.length == 3) {
+                     entries.put(fields[2], new String[]{fields[0], fields[1]});
+                  }
+               }
+            } finally {
+               reader.close();
+            }
+         } else if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+            throw new IOException("Could not create " + file.getParentFile());
+         }
+         writer = new OutputStreamWriter(new FileOutputStream(file, true), Charsets.UTF_8);
+      }
+
+      private boolean contains(String path, String md5, String etag) {
+         String[] entry = entries.get(path);
+         return entry != null && entry[0].equals(md5) && entry[1].equals(etag);
+      }
+
+      private synchronized void record(String path, String md5, String etag) throws IOException {
+         String[] entry = entries.put(path, new String[]{md5, etag});
+         if (entry == null || !entry[0].equals(md5) || !entry[1].equals(etag)) {
+            writer.write(md5 + JOURNAL_SEPARATOR + etag + JOURNAL_SEPARATOR + path + "\n");
+            writer.flush();
+         }
+      }
+
+      private void remove(String path) {
+         entries.remove(path);
+      }
+
+      private synchronized void close() throws IOException {
+         writer.close();
+      }
+
+      /**
+       * Rewrites the journal with the latest entry of each file.
+       */
+      private synchronized void compact() throws IOException {
+         File compacted = new File(file.getPath() + ".tmp");
+         Writer output = new OutputStreamWriter(new FileOutputStream(compacted), Charsets.UTF_8);
+         try {
+            for (Map.Entry<String, String[]> entry : entries.entrySet()) {
+               output.write(entry.getValue()[0] + JOURNAL_SEPARATOR + entry.getValue()[1] + JOURNAL_SEPARATOR + entry.getKey() + "\n");
+            }
+         } finally {
+            output.close();
+         }
+         if (!file.delete() || !compacted.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+         }
+      }
+   }
+}
@@ -19,21 +19,33 @@
 
 package org.jclouds.karaf.commands.blobstore;
 
-import java.io.InputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
+import java.net.URLConnection;
 
+import com.google.common.base.Charsets;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
+import com.google.common.io.Files;
 
 import org.apache.felix.gogo.commands.Argument;
 import org.apache.felix.gogo.commands.Command;
+import org.apache.felix.gogo.commands.CommandException;
 import org.apache.felix.gogo.commands.Option;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.domain.BlobBuilder;
 import org.jclouds.blobstore.options.PutOptions;
 
 /**
+ * Writes a file, a string, the resource of a URL or the data piped to the command to a blob.
+ * URL payloads of known length are streamed to the blobstore. Payloads of unknown length are kept in memory
+ * up to the spool threshold and spooled to a temporary file beyond it.
+ *
  * @author: iocanel
  */
 @Command(scope = "jclouds", name = "blobstore-write", description = "Writes data to the blobstore")
@@ -45,7 +57,7 @@ public class BlobWriteCommand extends BlobStoreCommandWithOptions {
    @Argument(index = 1, name = "blobName", description = "The name of the blob", required = true, multiValued = false)
    String blobName;
 
-   @Argument(index = 2, name = "payload", description = "Payload, interpreted as a file name by default", required = true, multiValued = false)
+   @Argument(index = 2, name = "payload", description = "Payload, interpreted as a file name by default, - reads the data piped to the command", required = true, multiValued = false)
    String payload;
 
    @Option(name = "-s", aliases = "--string-payload", description = "Use string payload instead of a file", required = false, multiValued = false)
@@ -57,34 +69,111 @@ public class BlobWriteCommand extends BlobStoreCommandWithOptions {
    @Option(name = "-m", aliases = "--multipart-upload", description = "Use multi-part upload", required = false, multiValued = false)
    boolean multipartUpload;
 
+   @Option(name = "--spool-threshold", description = "The size in KB above which payloads of unknown length are spooled to disk", required = false, multiValued = false)
+   int spoolThreshold = 1024;
+
+   private static final String STDIN = "-";
+   private static final int KB = 1024;
+   //The largest threshold whose bytes still fit in an array.
+   private static final int MAX_SPOOL_THRESHOLD = (Integer.MAX_VALUE - 8) / KB;
+   private static final int INITIAL_BUFFER_SIZE = 64 * KB;
+
+   private File spoolFile;
+
    @Override
    protected Object doExecute() throws Exception {
+      if (spoolThreshold < 0 || spoolThreshold > MAX_SPOOL_THRESHOLD) {
+         throw new CommandException("The spool threshold must be between 0 and " + MAX_SPOOL_THRESHOLD + " KB");
+      }
       BlobStore blobStore = getBlobStore();
 
       BlobBuilder builder = blobStore.blobBuilder(blobName);
-      if (stringPayload) {
-         builder = builder.payload(payload.getBytes());  // use default Charset
-      } else if (urlPayload) {
-         InputStream input = new URL(payload).openStream();
-         try {
-            builder = builder.payload(ByteStreams.toByteArray(input));
-         } finally {
-            input.close();
+      InputStream input = null;
+      try {
+         if (stringPayload) {
+            byte[] bytes = payload.getBytes(Charsets.UTF_8);
+            builder = builder.payload(ByteStreams.asByteSource(bytes)).contentLength(bytes.length);
+         } else if (urlPayload) {
+            URLConnection connection = new URL(payload).openConnection();
+            input = connection.getInputStream();
+            long length = getContentLength(connection);
+            BlobBuilder.PayloadBlobBuilder payloadBuilder = length >= 0 ? builder.payload(input).contentLength(length) : spool(builder, input);
+            String contentType = connection.getContentType();
+            if (contentType != null && !contentType.equals("content/unknown")) {
+               payloadBuilder = payloadBuilder.contentType(contentType);
+            }
+            builder = payloadBuilder;
+         } else if (STDIN.equals(payload)) {
+            builder = spool(builder, System.in);
+         } else {
+            BlobBuilder.PayloadBlobBuilder payloadBuilder = builder.payload(new File(payload));
+            if (!multipartUpload) {
+               payloadBuilder = payloadBuilder.calculateMD5();
+            }
+            builder = payloadBuilder;
          }
-      } else {
-         BlobBuilder.PayloadBlobBuilder payloadBuilder = builder.payload(new File(payload));
-         if (!multipartUpload) {
-            payloadBuilder = payloadBuilder.calculateMD5();
+
+         PutOptions options = multipartUpload ? new PutOptions().multipart(true) : PutOptions.NONE;
+         write(blobStore, containerName, blobName, builder.build(), options);
+      } finally {
+         Closeables.close(input, true);
+         if (spoolFile != null && !spoolFile.delete()) {
+            spoolFile.deleteOnExit();
          }
-         builder = payloadBuilder;
       }
 
-      PutOptions options = multipartUpload ? new PutOptions().multipart(true) : PutOptions.NONE;
-      write(blobStore, containerName, blobName, builder.build(), options);
-
       cacheProvider.getProviderCacheForType("container").put(blobStore.getContext().unwrap().getId(), containerName);
       cacheProvider.getProviderCacheForType("blob").put(blobStore.getContext().unwrap().getId(), blobName);
 
       return null;
    }
+
+   /**
+    * Reads a payload of unknown length. Payloads up to the spool threshold are kept in memory, in a buffer that
+    * grows with the payload, larger ones are copied to a temporary file.
+    * @param builder
+    * @param input
+    * @return
+    * @throws IOException
+    */
+   private BlobBuilder.PayloadBlobBuilder spool(BlobBuilder builder, InputStream input) throws IOException {
+      long threshold = (long) spoolThreshold * KB;
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) Math.min(threshold, INITIAL_BUFFER_SIZE));
+      if (ByteStreams.copy(ByteStreams.limit(input, threshold + 1), buffer) <= threshold) {
+         byte[] bytes = buffer.toByteArray();
+         return builder.payload(ByteStreams.asByteSource(bytes)).contentLength(bytes.length);
+      }
+      File directory = getTempDirectory();
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+         throw new IOException("Could not create " + directory);
+      }
+      spoolFile = File.createTempFile("blobstore-write", ".spool", directory);
+      OutputStream output = new FileOutputStream(spoolFile);
+      try {
+         buffer.writeTo(output);
+         buffer = null;
+         ByteStreams.copy(input, output);
+      } finally {
+         output.close();
+      }
+      return builder.payload(Files.asByteSource(spoolFile)).contentLength(spoolFile.length());
+   }
+
+   /**
+    * Returns the Content-Length of the connection or -1 if it is unknown.
+    * {@link URLConnection#getContentLength()} can't be used, it returns -1 for resources larger than 2GB.
+    * @param connection
+    * @return
+    */
+   private static long getContentLength(URLConnection connection) {
+      String length = connection.getHeaderField("content-length");
+      if (length != null) {
+         try {
+            return Long.parseLong(length.trim());
+         } catch (NumberFormatException e) {
+            //Fall back to spooling.
+         }
+      }
+      return -1;
+   }
 }
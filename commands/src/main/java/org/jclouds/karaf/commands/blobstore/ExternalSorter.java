@@ -0,0 +1,213 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jclouds.karaf.commands.blobstore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.google.common.io.Closeables;
+
+/**
+ * Sorts any number of strings with a fixed amount of memory.
+ * The strings are buffered up to a maximum, then sorted and spilled to a run file. The runs are merged
+ * (a k-way merge, in several passes if there are many runs) while the sorted strings are handed out.
+ */
+public class ExternalSorter implements Closeable {
+
+   private static final int MAX_OPEN_RUNS = 64;
+   private static final int BUFFER_SIZE = 16 * 1024;
+
+   private final File directory;
+   private final int maxInMemory;
+   private final List<String> buffer = new ArrayList<String>();
+   private final LinkedList<File> runs = new LinkedList<File>();
+
+   /**
+    * Handles the sorted strings.
+    */
+   public interface Handler {
+      void handle(String value) throws Exception;
+   }
+
+   /**
+    * Constructor
+    *
+    * @param directory   the directory of the run files.
+    * @param maxInMemory the number of strings that are sorted in memory before they are spilled to a run.
+    */
+   public ExternalSorter(File directory, int maxInMemory) {
+      this.directory = directory;
+      this.maxInMemory = Math.max(1, maxInMemory);
+   }
+
+   public void add(String value) throws IOException {
+      buffer.add(value);
+      if (buffer.size() >= maxInMemory) {
+         spill();
+      }
+   }
+
+   /**
+    * Hands all the strings to the handler in their natural order.
+    * @param handler
+    * @throws Exception
+    */
+   public void sorted(Handler handler) throws Exception {
+      Collections.sort(buffer);
+      if (runs.isEmpty()) {
+         for (String value : buffer) {
+            handler.handle(value);
+         }
+         return;
+      }
+      spill();
+      while (runs.size() > MAX_OPEN_RUNS) {
+         List<File> group = new ArrayList<File>(runs.subList(0, MAX_OPEN_RUNS));
+         runs.subList(0, MAX_OPEN_RUNS).clear();
+         try {
+            final DataOutputStream out = openRun();
+            try {
+               merge(group, new Handler() {
+                  @Override
+                  public void handle(String value) throws Exception {
+                     out.writeUTF(value);
+                  }
+               });
+            } finally {
+               out.close();
+            }
+         } finally {
+            //The group is no longer in the runs, so close() would not delete it.
+            for (File run : group) {
+               run.delete();
+            }
+         }
+      }
+      merge(runs, handler);
+   }
+
+   /**
+    * Spills the buffered strings to a run, so that the sorter holds no strings in memory until they are sorted.
+    * @throws IOException
+    */
+   public void flush() throws IOException {
+      spill();
+   }
+
+   /**
+    * Deletes the runs.
+    */
+   @Override
+   public void close() {
+      buffer.clear();
+      for (File run : runs) {
+         run.delete();
+      }
+      runs.clear();
+   }
+
+   private void spill() throws IOException {
+      if (buffer.isEmpty()) {
+         return;
+      }
+      Collections.sort(buffer);
+      DataOutputStream out = openRun();
+      try {
+         for (String value : buffer) {
+            out.writeUTF(value);
+         }
+      } finally {
+         out.close();
+      }
+      buffer.clear();
+   }
+
+   private DataOutputStream openRun() throws IOException {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+         throw new IOException("Could not create " + directory);
+      }
+      File run = File.createTempFile("sort", ".run", directory);
+      runs.add(run);
+      return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE));
+   }
+
+   private static void merge(List<File> files, Handler handler) throws Exception {
+      PriorityQueue<Run> queue = new PriorityQueue<Run>();
+      List<Run> open = new ArrayList<Run>();
+      try {
+         for (File file : files) {
+            Run run = new Run(file);
+            open.add(run);
+            if (run.next()) {
+               queue.add(run);
+            }
+         }
+         Run run;
+         while ((run = queue.poll()) != null) {
+            handler.handle(run.current);
+            if (run.next()) {
+               queue.add(run);
+            }
+         }
+      } finally {
+         for (Run run : open) {
+            Closeables.close(run.in, true);
+         }
+      }
+   }
+
+   private static class Run implements Comparable<Run> {
+      private final DataInputStream in;
+      private String current;
+
+      private Run(File file) throws IOException {
+         this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+      }
+
+      private boolean next() throws IOException {
+         try {
+            current = in.readUTF();
+            return true;
+         } catch (EOFException e) {
+            current = null;
+            return false;
+         }
+      }
+
+      @Override
+      public int compareTo(Run other) {
+         return current.compareTo(other.current);
+      }
+   }
+}
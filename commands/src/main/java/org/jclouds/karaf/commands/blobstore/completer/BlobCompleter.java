@@ -20,7 +20,9 @@
 package org.jclouds.karaf.commands.blobstore.completer;
 
 import org.jclouds.blobstore.BlobStore;
-import org.jclouds.karaf.utils.ServiceHelper;
+
+import java.util.HashSet;
+import java.util.Set;
 
 public class BlobCompleter extends BlobStoreCompleterSupport {
 
@@ -29,11 +31,11 @@ public class BlobCompleter extends BlobStoreCompleterSupport {
    }
 
    @Override
-   public void updateOnAdded(BlobStore blobStore) {
+   public Set<String> snapshot(BlobStore blobStore) {
+      Set<String> blobs = new HashSet<String>();
       for (String container : listContainers(blobStore)) {
-        for (String cacheKey : ServiceHelper.findCacheKeysForService(blobStore)) {
-          cache.putAll(cacheKey, listBlobs(blobStore, container));
-        }
+         blobs.addAll(listBlobs(blobStore, container));
       }
+      return blobs;
    }
 }
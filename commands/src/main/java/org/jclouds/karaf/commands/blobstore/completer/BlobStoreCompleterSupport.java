@@ -62,11 +62,6 @@ public abstract class BlobStoreCompleterSupport extends GenericCompleterSupport<
       return blobs;
    }
 
-   @Override
-   public void updateOnRemoved(BlobStore blobStore) {
-      cache.removeAll(blobStore.getContext().unwrap().getId());
-   }
-
    public Multimap<String, String> getCache() {
       return cache;
    }
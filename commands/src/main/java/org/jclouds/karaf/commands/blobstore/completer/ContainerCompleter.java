@@ -20,7 +20,8 @@
 package org.jclouds.karaf.commands.blobstore.completer;
 
 import org.jclouds.blobstore.BlobStore;
-import org.jclouds.karaf.utils.ServiceHelper;
+
+import java.util.Set;
 
 
 public class ContainerCompleter extends BlobStoreCompleterSupport {
@@ -30,16 +31,7 @@ public class ContainerCompleter extends BlobStoreCompleterSupport {
    }
 
    @Override
-   public void updateOnAdded(BlobStore blobStore) {
-     for (String cacheKey : ServiceHelper.findCacheKeysForService(blobStore)) {
-       cache.putAll(cacheKey, listContainers(blobStore));
-     }
-   }
-
-   @Override
-   public void updateOnRemoved(BlobStore blobStore) {
-     for (String cacheKey : ServiceHelper.findCacheKeysForService(blobStore)) {
-       cache.removeAll(blobStore.getContext().unwrap().getId());
-     }
+   public Set<String> snapshot(BlobStore blobStore) {
+      return listContainers(blobStore);
    }
 }
@@ -0,0 +1,93 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jclouds.karaf.commands.cache;
+
+import org.apache.felix.gogo.commands.Command;
+import org.apache.felix.gogo.commands.Option;
+import org.apache.karaf.shell.console.AbstractAction;
+import org.jclouds.karaf.cache.CacheRefresher;
+import org.jclouds.karaf.cache.RefreshResult;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@Command(scope = "jclouds", name = "cache-refresh", description = "Refreshes the completer caches right away, ahead of the background refreshes.")
+public class CacheRefreshCommand extends AbstractAction {
+
+   private static final String FORMAT = "%-32s %-20s %8s %10s %s";
+
+   @Option(name = "--type", description = "The completer type of the caches to refresh (e.g. image, hardware, container). Refreshes all types by default.")
+   private String type;
+
+   @Option(name = "--name", description = "The service context name of the caches to refresh.")
+   private String name;
+
+   @Option(name = "--provider", description = "The provider of the caches to refresh.")
+   private String provider;
+
+   @Option(name = "--api", description = "The api of the caches to refresh.")
+   private String api;
+
+   @Option(name = "--timeout", description = "The maximum time in seconds to wait for the refreshes.")
+   private long timeout = 180;
+
+   private List<CacheRefresher> cacheRefreshers = new ArrayList<CacheRefresher>();
+
+   @Override
+   protected Object doExecute() throws Exception {
+      PrintStream out = System.out;
+      String id = name != null ? name : (provider != null ? provider : api);
+      long start = System.currentTimeMillis();
+      List<RefreshResult> results = new ArrayList<RefreshResult>();
+      for (CacheRefresher refresher : cacheRefreshers) {
+         long remaining = TimeUnit.SECONDS.toMillis(timeout) - (System.currentTimeMillis() - start);
+         results.addAll(refresher.refreshNow(type, id, Math.max(0, remaining)));
+      }
+
+      if (results.isEmpty()) {
+         out.println("No caches found to refresh.");
+         return null;
+      }
+      out.println(String.format(FORMAT, "[service]", "[type]", "[changes]", "[time ms]", "[status]"));
+      int failures = 0;
+      for (RefreshResult result : results) {
+         if (!result.isSuccessful()) {
+            failures++;
+         }
+         out.println(String.format(FORMAT, result.getService(), result.getType(), result.getChanges(),
+                 result.getDuration() >= 0 ? String.valueOf(result.getDuration()) : "-",
+                 result.isSuccessful() ? "ok" : "failed: " + result.getError()));
+      }
+      out.println(String.format("Refreshed %d caches (%d failed) in %d ms.", results.size(), failures,
+              System.currentTimeMillis() - start));
+      return null;
+   }
+
+   public List<CacheRefresher> getCacheRefreshers() {
+      return cacheRefreshers;
+   }
+
+   public void setCacheRefreshers(List<CacheRefresher> cacheRefreshers) {
+      this.cacheRefreshers = cacheRefreshers;
+   }
+}
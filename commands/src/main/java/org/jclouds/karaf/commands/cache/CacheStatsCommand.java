@@ -0,0 +1,84 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jclouds.karaf.commands.cache;
+
+import org.apache.felix.gogo.commands.Command;
+import org.apache.karaf.shell.console.AbstractAction;
+import org.jclouds.karaf.cache.management.CacheStatsMXBean;
+import org.jclouds.karaf.cache.management.CacheTypeStats;
+import org.jclouds.karaf.cache.management.LookupStats;
+import org.jclouds.karaf.cache.management.RefreshStats;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+@Command(scope = "jclouds", name = "cache-stats", description = "Displays the size, refresh and lookup statistics of the completer caches.")
+public class CacheStatsCommand extends AbstractAction {
+
+   private static final String TYPE_FORMAT = "%-24s %8s %8s %12s %10s";
+   private static final String REFRESH_FORMAT = "%-24s %-24s %8s %8s %10s %10s %10s %-20s %s";
+   private static final String LOOKUP_FORMAT = "%-32s %10s %10s %10s";
+
+   private CacheStatsMXBean cacheStats;
+
+   @Override
+   protected Object doExecute() throws Exception {
+      PrintStream out = System.out;
+      out.println("Cache Types:");
+      out.println("------------");
+      out.println(String.format(TYPE_FORMAT, "[type]", "[keys]", "[values]", "[memory KB]", "[evicted]"));
+      for (CacheTypeStats stats : cacheStats.getCacheTypes()) {
+         out.println(String.format(TYPE_FORMAT, stats.getType(), stats.getKeys(), stats.getEntries(),
+                 stats.getApproximateMemory() / 1024, stats.getEvictions()));
+      }
+
+      out.println();
+      out.println("Refreshes:");
+      out.println("----------");
+      out.println(String.format(REFRESH_FORMAT, "[provider]", "[cacheable]", "[count]", "[errors]", "[avg ms]",
+              "[last ms]", "[max ms]", "[last refresh]", "[<100ms <1s <10s <1m >=1m]"));
+      SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+      for (RefreshStats stats : cacheStats.getRefreshes()) {
+         out.println(String.format(REFRESH_FORMAT, stats.getProvider(), stats.getCacheable(), stats.getRefreshCount(),
+                 stats.getErrorCount(), stats.getAverageDuration(), stats.getLastDuration(), stats.getMaxDuration(),
+                 dateFormat.format(new Date(stats.getLastRefreshTime())), Arrays.toString(stats.getDurationHistogram())));
+      }
+
+      out.println();
+      out.println("Lookups:");
+      out.println("--------");
+      out.println(String.format(LOOKUP_FORMAT, "[completer]", "[hits]", "[misses]", "[hit ratio]"));
+      for (LookupStats stats : cacheStats.getLookups()) {
+         out.println(String.format(LOOKUP_FORMAT, stats.getCompleter(), stats.getHits(), stats.getMisses(),
+                 String.format("%.2f", stats.getHitRatio())));
+      }
+      return null;
+   }
+
+   public CacheStatsMXBean getCacheStats() {
+      return cacheStats;
+   }
+
+   public void setCacheStats(CacheStatsMXBean cacheStats) {
+      this.cacheStats = cacheStats;
+   }
+}
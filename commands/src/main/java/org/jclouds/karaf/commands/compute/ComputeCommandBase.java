@@ -29,6 +29,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import com.google.common.collect.Multimap;
+
 import org.apache.felix.service.command.CommandSession;
 import org.apache.karaf.shell.console.AbstractAction;
 import org.jclouds.apis.ApiMetadata;
@@ -40,8 +42,8 @@ import org.jclouds.compute.domain.NodeMetadata;
 import org.jclouds.compute.domain.OperatingSystem;
 import org.jclouds.compute.domain.Processor;
 import org.jclouds.domain.Location;
-import org.jclouds.karaf.cache.BasicCacheProvider;
 import org.jclouds.karaf.cache.CacheProvider;
+import org.jclouds.karaf.cache.ConcurrentCacheProvider;
 import org.jclouds.karaf.commands.table.internal.PropertyShellTableFactory;
 import org.jclouds.karaf.commands.table.ShellTable;
 import org.jclouds.karaf.commands.table.ShellTableFactory;
@@ -63,7 +65,7 @@ public abstract class ComputeCommandBase extends AbstractAction {
    public static final String FACTORY_FILTER = "(service.factoryPid=%s)";
 
    protected ConfigurationAdmin configAdmin;
-   protected CacheProvider cacheProvider = new BasicCacheProvider();
+   protected CacheProvider cacheProvider = new ConcurrentCacheProvider();
    protected List<ComputeService> computeServices = new ArrayList<ComputeService>();
    protected ShellTableFactory shellTableFactory = new PropertyShellTableFactory();
 
@@ -117,12 +119,14 @@ public abstract class ComputeCommandBase extends AbstractAction {
      table.setDisplayData(nodes);
      table.display(out, true, true);
 
+      Set<String> groups = new HashSet<String>();
       for (ComputeMetadata metadata : nodes) {
          NodeMetadata node = (NodeMetadata) metadata;
-        for (String cacheKey : ServiceHelper.findCacheKeysForService(service)) {
-          cacheProvider.getProviderCacheForType(Constants.GROUP).put(cacheKey, node.getGroup());
-        }
+         if (node.getGroup() != null) {
+            groups.add(node.getGroup());
+         }
       }
+      putAll(service, Constants.GROUP, groups);
    }
 
    protected void printHardwares(ComputeService service, Set<? extends Hardware> hardwares, PrintStream out) {
@@ -130,11 +134,11 @@ public abstract class ComputeCommandBase extends AbstractAction {
      table.setDisplayData(hardwares);
      table.display(out, true, true);
 
+      Set<String> ids = new HashSet<String>();
       for (Hardware hardware : hardwares) {
-         for (String cacheKey : ServiceHelper.findCacheKeysForService(service)) {
-           cacheProvider.getProviderCacheForType(Constants.HARDWARE_CACHE).put(cacheKey, hardware.getId());
-         }
+         ids.add(hardware.getId());
       }
+      putAll(service, Constants.HARDWARE_CACHE, ids);
    }
 
    protected void printImages(ComputeService service, Set<? extends Image> images, PrintStream out) {
@@ -142,11 +146,11 @@ public abstract class ComputeCommandBase extends AbstractAction {
       table.setDisplayData(images);
       table.display(out, true, true);
 
+      Set<String> ids = new HashSet<String>();
       for (Image image : images) {
-        for (String cacheKey : ServiceHelper.findCacheKeysForService(service)) {
-         cacheProvider.getProviderCacheForType(Constants.IMAGE_CACHE).put(cacheKey, image.getId());
-        }
+         ids.add(image.getId());
       }
+      putAll(service, Constants.IMAGE_CACHE, ids);
    }
 
    protected void printLocations(ComputeService computeService, PrintStream out) {
@@ -157,17 +161,33 @@ public abstract class ComputeCommandBase extends AbstractAction {
 
    protected Set<? extends Location> getAllLocations(ComputeService computeService) {
       Set<Location> all = new HashSet<Location>();
+      Set<String> ids = new HashSet<String>();
       for (Location loc : computeService.listAssignableLocations()) {
          for (Location p = loc; p != null; p = p.getParent()) {
             all.add(p);
-            for (String cacheKey : ServiceHelper.findCacheKeysForService(computeService)) {
-            cacheProvider.getProviderCacheForType(Constants.LOCATION_CACHE).put(cacheKey, p.getId());
-            }
+            ids.add(p.getId());
          }
       }
+      putAll(computeService, Constants.LOCATION_CACHE, ids);
       return all;
    }
 
+   /**
+    * Adds the values to the cache of the type under each key of the service, with a single put per key.
+    * @param service
+    * @param type
+    * @param values
+    */
+   private void putAll(ComputeService service, String type, Set<String> values) {
+      if (values.isEmpty()) {
+         return;
+      }
+      Multimap<String, String> cache = cacheProvider.getProviderCacheForType(type);
+      for (String cacheKey : ServiceHelper.findCacheKeysForService(service)) {
+         cache.putAll(cacheKey, values);
+      }
+   }
+
    /**
     * Returns a String that displays the {@link org.jclouds.compute.domain.OperatingSystem} details.
     * 
@@ -24,8 +24,8 @@ import org.jclouds.compute.ComputeService;
 import org.jclouds.compute.domain.ComputeMetadata;
 import org.jclouds.compute.domain.NodeMetadata;
 import org.jclouds.karaf.core.Constants;
-import org.jclouds.karaf.utils.ServiceHelper;
 
+import java.util.HashSet;
 import java.util.Set;
 
 public class GroupCompleter extends ComputeCompleterSupport implements Completer {
@@ -35,20 +35,18 @@ public class GroupCompleter extends ComputeCompleterSupport implements Completer
    }
 
    @Override
-   public void updateOnAdded(ComputeService computeService) {
-      if (computeService != null) {
-         Set<? extends ComputeMetadata> computeMetadatas = computeService.listNodes();
-         if (computeMetadatas != null) {
-            for (ComputeMetadata compute : computeMetadatas) {
-               NodeMetadata node = (NodeMetadata) compute;
-               if (apply(node)) {
-                 for (String cacheKey : ServiceHelper.findCacheKeysForService(computeService)) {
-                   cache.put(cacheKey, node.getGroup());
-                 }
-               }
+   public Set<String> snapshot(ComputeService computeService) {
+      Set<String> values = new HashSet<String>();
+      Set<? extends ComputeMetadata> computeMetadatas = computeService.listNodes();
+      if (computeMetadatas != null) {
+         for (ComputeMetadata compute : computeMetadatas) {
+            NodeMetadata node = (NodeMetadata) compute;
+            if (apply(node) && node.getGroup() != null) {
+               values.add(node.getGroup());
             }
          }
       }
+      return values;
    }
 
    public boolean apply(NodeMetadata node) {
@@ -19,12 +19,12 @@
 
 package org.jclouds.karaf.commands.compute.completer;
 
+import java.util.HashSet;
 import java.util.Set;
 
 import org.jclouds.compute.ComputeService;
 import org.jclouds.compute.domain.Hardware;
 import org.jclouds.karaf.core.Constants;
-import org.jclouds.karaf.utils.ServiceHelper;
 
 
 public class HardwareCompleter extends ComputeCompleterSupport {
@@ -34,16 +34,14 @@ public class HardwareCompleter extends ComputeCompleterSupport {
    }
 
    @Override
-   public void updateOnAdded(ComputeService computeService) {
-      if (computeService != null) {
-         Set<? extends Hardware> hardwares = computeService.listHardwareProfiles();
-         if (hardwares != null) {
-            for (Hardware hardware : hardwares) {
-              for (String cacheKey : ServiceHelper.findCacheKeysForService(computeService)) {
-                cache.put(cacheKey, hardware.getId());
-              }
-            }
+   public Set<String> snapshot(ComputeService computeService) {
+      Set<String> ids = new HashSet<String>();
+      Set<? extends Hardware> hardwares = computeService.listHardwareProfiles();
+      if (hardwares != null) {
+         for (Hardware hardware : hardwares) {
+            ids.add(hardware.getId());
          }
       }
+      return ids;
    }
 }
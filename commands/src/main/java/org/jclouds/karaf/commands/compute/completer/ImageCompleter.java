@@ -23,8 +23,8 @@ import org.apache.karaf.shell.console.Completer;
 import org.jclouds.compute.ComputeService;
 import org.jclouds.compute.domain.Image;
 import org.jclouds.karaf.core.Constants;
-import org.jclouds.karaf.utils.ServiceHelper;
 
+import java.util.HashSet;
 import java.util.Set;
 
 public class ImageCompleter extends ComputeCompleterSupport implements Completer {
@@ -34,16 +34,14 @@ public class ImageCompleter extends ComputeCompleterSupport implements Completer
    }
 
    @Override
-   public void updateOnAdded(ComputeService computeService) {
-      if (computeService != null) {
-         Set<? extends Image> images = computeService.listImages();
-         if (images != null) {
-            for (Image image : images) {
-              for (String cacheKey : ServiceHelper.findCacheKeysForService(computeService)) {
-                cache.put(cacheKey, image.getId());
-              }
-            }
+   public Set<String> snapshot(ComputeService computeService) {
+      Set<String> ids = new HashSet<String>();
+      Set<? extends Image> images = computeService.listImages();
+      if (images != null) {
+         for (Image image : images) {
+            ids.add(image.getId());
          }
       }
+      return ids;
    }
 }
@@ -22,8 +22,8 @@ package org.jclouds.karaf.commands.compute.completer;
 import org.jclouds.compute.ComputeService;
 import org.jclouds.domain.Location;
 import org.jclouds.karaf.core.Constants;
-import org.jclouds.karaf.utils.ServiceHelper;
 
+import java.util.HashSet;
 import java.util.Set;
 
 
@@ -34,16 +34,14 @@ public class LocationCompleter extends ComputeCompleterSupport {
    }
 
    @Override
-   public void updateOnAdded(ComputeService computeService) {
-      if (computeService != null) {
-         Set<? extends Location> locations = computeService.listAssignableLocations();
-         if (locations != null) {
-            for (Location location : locations) {
-              for (String cacheKey : ServiceHelper.findCacheKeysForService(computeService)) {
-                cache.put(cacheKey, location.getId());
-              }
-            }
+   public Set<String> snapshot(ComputeService computeService) {
+      Set<String> ids = new HashSet<String>();
+      Set<? extends Location> locations = computeService.listAssignableLocations();
+      if (locations != null) {
+         for (Location location : locations) {
+            ids.add(location.getId());
          }
       }
+      return ids;
    }
 }
@@ -24,7 +24,10 @@ import org.jclouds.karaf.commands.support.GenericCompleterSupport;
 import org.jclouds.karaf.core.Constants;
 import org.jclouds.karaf.recipe.RecipeProvider;
 
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class RecipeCompleter extends GenericCompleterSupport<RecipeProvider, String> implements Cacheable<RecipeProvider> {
 
@@ -51,11 +54,16 @@ public class RecipeCompleter extends GenericCompleterSupport<RecipeProvider, Str
     }
 
     @Override
-    public void updateOnAdded(RecipeProvider recipeProvider) {
-        if (recipeProvider != null) {
-            for (String recipe : recipeProvider.listProvidedRecipes()) {
-                cache.put(ANY, recipe);
-            }
+    protected List<String> getCacheKeys(RecipeProvider recipeProvider) {
+        return Arrays.asList(recipeProvider.getId(), ANY);
+    }
+
+    @Override
+    public Set<String> snapshot(RecipeProvider recipeProvider) {
+        Set<String> recipes = new HashSet<String>();
+        for (String recipe : recipeProvider.listProvidedRecipes()) {
+            recipes.add(recipe);
         }
+        return recipes;
     }
 }
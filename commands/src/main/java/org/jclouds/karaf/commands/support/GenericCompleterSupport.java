@@ -19,20 +19,29 @@
 
 package org.jclouds.karaf.commands.support;
 
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
+import jline.console.ConsoleReader;
 import org.apache.felix.service.command.CommandSession;
 import org.apache.karaf.shell.console.Completer;
 import org.apache.karaf.shell.console.completer.ArgumentCompleter;
 import org.apache.karaf.shell.console.completer.StringsCompleter;
 import org.apache.karaf.shell.console.jline.CommandSessionHolder;
 import org.jclouds.karaf.cache.CacheProvider;
-import org.jclouds.karaf.cache.Cacheable;
+import org.jclouds.karaf.cache.LazyCacheable;
+import org.jclouds.karaf.cache.management.CacheMetrics;
+import org.jclouds.karaf.cache.utils.CacheUtils;
+import org.jclouds.karaf.utils.ServiceHelper;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
-public abstract class GenericCompleterSupport<T,K> implements Completer, Cacheable<T> {
+public abstract class GenericCompleterSupport<T,K> implements Completer, LazyCacheable<T> {
 
    protected static final String NAME_OPTION = "--name";
    protected static final String PROVIDER_OPTION = "--provider";
@@ -42,6 +51,15 @@ public abstract class GenericCompleterSupport<T,K> implements Completer, Cacheab
    protected CacheProvider cacheProvider;
    protected Multimap<String, String> cache;
 
+   //The keys of the services that contribute to each shared key (e.g. the context names per provider).
+   private final Multimap<String, String> sharedKeyOwners = HashMultimap.create();
+
+   //In lazy mode the cache is only populated after the first completion, until then refreshes are deferred.
+   private boolean lazy;
+   private volatile boolean demanded;
+   private volatile boolean loaded;
+   private volatile Runnable refreshTrigger;
+
     public abstract K getCacheableKey(T type);
 
    @Override
@@ -49,30 +67,51 @@ public abstract class GenericCompleterSupport<T,K> implements Completer, Cacheab
      CommandSession commandSession = CommandSessionHolder.getSession();
      ArgumentCompleter.ArgumentList list = (ArgumentCompleter.ArgumentList) commandSession.get(ArgumentCompleter.ARGUMENTS_LIST);
      delegate.getStrings().clear();
+     if (lazy && !demanded) {
+        demand();
+     }
 
      if (list != null) {
         String contextName = extractContextName(list.getArguments());
        String providerOrApi = extractProviderOrApiFromArguments(list.getArguments());
-       Collection<String> values;
+       String key = null;
 
        if (contextName != null && cache.containsKey(contextName)) {
-         values = cache.get(contextName);
+         key = contextName;
        } else if (providerOrApi != null && cache.containsKey(providerOrApi)) {
-         values = cache.get(providerOrApi);
-       } else {
-         values = cache.values();
+         key = providerOrApi;
        }
-
-       for (String item : values) {
-         if (buffer == null || item.startsWith(buffer)) {
-           delegate.getStrings().add(item);
-         }
+       Collection<String> values = CacheUtils.findByPrefix(cache, key, buffer);
+       CacheMetrics.getInstance().recordLookup(getClass().getSimpleName(), !values.isEmpty());
+       delegate.getStrings().addAll(values);
+       if (values.isEmpty() && lazy && !loaded) {
+          printLoadingHint(commandSession);
        }
      }
 
      return delegate.complete(buffer, cursor, candidates);
    }
 
+  /**
+   * Tells the user that the values are still being loaded, as the completion has nothing to offer yet.
+   * The hint is printed above the prompt, which is then redrawn with the buffer.
+   * @param commandSession
+   */
+  private void printLoadingHint(CommandSession commandSession) {
+    Object reader = commandSession.get(".jline.reader");
+    if (reader instanceof ConsoleReader) {
+      ConsoleReader consoleReader = (ConsoleReader) reader;
+      try {
+        consoleReader.println();
+        consoleReader.println("Loading completion values in the background, press TAB again in a moment.");
+        consoleReader.drawLine();
+        consoleReader.flush();
+      } catch (IOException e) {
+        //noop
+      }
+    }
+  }
+
   /**
    * Parses the arguments and extracts the service id.
    * @param args
@@ -123,8 +162,111 @@ public abstract class GenericCompleterSupport<T,K> implements Completer, Cacheab
     }
 
    @Override
-   public void updateOnRemoved(T type) {
-      cache.removeAll(getCacheableKey(type));
+   public void updateOnAdded(T service) {
+      refresh(service);
+   }
+
+   @Override
+   public int refresh(T service) {
+      if (service == null) {
+         return 0;
+      }
+      if (lazy && !demanded) {
+         return DEFERRED;
+      }
+      int changes = updateCache(service, snapshot(service), false);
+      loaded = true;
+      return changes;
+   }
+
+   /**
+    * Marks the cache as in demand and queues its refreshes on the refresh engine of the cache manager, so that
+    * they go through the same rate limits, circuit breakers and timeouts as the scheduled ones.
+    * The completion that triggers it is served from what is already cached (e.g. the last snapshot).
+    */
+   private void demand() {
+      markDemanded();
+      Runnable trigger = refreshTrigger;
+      if (trigger != null) {
+         trigger.run();
+      }
+   }
+
+   @Override
+   public void markDemanded() {
+      demanded = true;
+   }
+
+   @Override
+   public void setRefreshTrigger(Runnable refreshTrigger) {
+      this.refreshTrigger = refreshTrigger;
+   }
+
+   @Override
+   public void updateOnRemoved(T service) {
+      if (service != null) {
+         updateCache(service, Collections.<String>emptySet(), true);
+      }
+   }
+
+   /**
+    * Returns the keys under which the values of the service are cached.
+    * The first key belongs to the service alone, the rest are shared with other services (e.g. the provider id).
+    * @param service
+    * @return
+    */
+   protected List<String> getCacheKeys(T service) {
+      return ServiceHelper.findCacheKeysForService(service);
+   }
+
+   /**
+    * Applies the snapshot of the service to the cache.
+    * The key of the service is swapped with the snapshot, while each shared key is swapped with the union of the
+    * snapshots of all services that share it, so that a refresh never drops values that another service provides.
+    * @param service
+    * @param snapshot
+    * @param removed
+    * @return the number of values of the service that were added or removed.
+    */
+   private int updateCache(T service, Set<String> snapshot, boolean removed) {
+      List<String> keys = getCacheKeys(service);
+      if (keys.isEmpty()) {
+         return 0;
+      }
+      String ownKey = keys.get(0);
+      synchronized (cache) {
+         int changes = CacheUtils.applyDelta(cache, ownKey, snapshot);
+         for (String sharedKey : keys.subList(1, keys.size())) {
+            if (sharedKey.equals(ownKey)) {
+               continue;
+            }
+            if (removed) {
+               sharedKeyOwners.remove(sharedKey, ownKey);
+            } else {
+               sharedKeyOwners.put(sharedKey, ownKey);
+            }
+            Set<String> union = new HashSet<String>(snapshot);
+            for (String owner : sharedKeyOwners.get(sharedKey)) {
+               if (!owner.equals(ownKey)) {
+                  union.addAll(cache.get(owner));
+               }
+            }
+            CacheUtils.applyDelta(cache, sharedKey, union);
+         }
+         return changes;
+      }
+   }
+
+   public boolean isLazy() {
+      return lazy;
+   }
+
+   /**
+    * Sets whether the cache is populated only after the first completion, instead of as soon as a service is bound.
+    * @param lazy
+    */
+   public void setLazy(boolean lazy) {
+      this.lazy = lazy;
    }
 
    public CacheProvider getCacheProvider() {
@@ -0,0 +1,122 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jclouds.karaf.commands.blobstore;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ExternalSorterTest {
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Test
+   public void testSortInMemory() throws Exception {
+      File directory = new File(folder.getRoot(), "sort");
+      ExternalSorter sorter = new ExternalSorter(directory, 100);
+      List<String> values = values(50);
+      for (String value : values) {
+         sorter.add(value);
+      }
+      assertEquals(sorted(values), collect(sorter));
+      sorter.close();
+      //Nothing has been spilled.
+      assertFalse(directory.exists());
+   }
+
+   @Test
+   public void testSortWithSeveralMergePasses() throws Exception {
+      File directory = new File(folder.getRoot(), "sort");
+      //1000 values in runs of 5 are 200 runs, which takes more than one merge pass.
+      ExternalSorter sorter = new ExternalSorter(directory, 5);
+      List<String> values = values(1000);
+      values.addAll(values.subList(0, 10));
+      for (String value : values) {
+         sorter.add(value);
+      }
+      assertEquals(sorted(values), collect(sorter));
+      sorter.close();
+      assertEquals(0, directory.list().length);
+   }
+
+   @Test
+   public void testFlushSpillsTheBuffer() throws Exception {
+      File directory = new File(folder.getRoot(), "sort");
+      ExternalSorter sorter = new ExternalSorter(directory, 100);
+      List<String> values = values(50);
+      for (String value : values) {
+         sorter.add(value);
+      }
+      sorter.flush();
+      assertEquals(1, directory.list().length);
+      assertEquals(sorted(values), collect(sorter));
+      sorter.close();
+      assertEquals(0, directory.list().length);
+   }
+
+   @Test
+   public void testCloseDeletesTheRuns() throws Exception {
+      File directory = new File(folder.getRoot(), "sort");
+      ExternalSorter sorter = new ExternalSorter(directory, 10);
+      for (String value : values(100)) {
+         sorter.add(value);
+      }
+      assertEquals(10, directory.list().length);
+      sorter.close();
+      assertEquals(0, directory.list().length);
+   }
+
+   private static List<String> values(int count) {
+      Random random = new Random(count);
+      List<String> values = new ArrayList<String>();
+      for (int i = 0; i < count; i++) {
+         values.add("blob-" + random.nextInt(count * 10) + "-\u00e9");
+      }
+      return values;
+   }
+
+   private static List<String> sorted(List<String> values) {
+      List<String> sorted = new ArrayList<String>(values);
+      Collections.sort(sorted);
+      return sorted;
+   }
+
+   private static List<String> collect(ExternalSorter sorter) throws Exception {
+      final List<String> result = new ArrayList<String>();
+      sorter.sorted(new ExternalSorter.Handler() {
+         @Override
+         public void handle(String value) {
+            result.add(value);
+         }
+      });
+      return result;
+   }
+}
@@ -0,0 +1,36 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jclouds.karaf.core;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.NodeMetadata;
+
+/**
+ * A {@link NodeListener} which also needs the {@link ComputeService} each node belongs to,
+ * and which listens for node suspension and resumption events too.
+ * Listeners of this type receive the events below instead of the ones of {@link NodeListener}.
+ */
+public interface ComputeNodeListener extends NodeListener {
+
+    void nodeCreated(ComputeService computeService, NodeMetadata node);
+    void nodeDestroyed(ComputeService computeService, NodeMetadata node);
+    void nodeSuspended(ComputeService computeService, NodeMetadata node);
+    void nodeResumed(ComputeService computeService, NodeMetadata node);
+}
@@ -19,11 +19,13 @@
 
 package org.jclouds.karaf.core;
 
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.jclouds.compute.ComputeService;
 import org.jclouds.compute.ComputeServiceContext;
@@ -53,7 +55,8 @@ import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * A proxy implementations of the {@link ComputeService} which delegates calls to the underlying impl and notifies
- * {@link NodeListener}s about node creation/destruction events.
+ * {@link NodeListener}s about node creation and destruction events. {@link ComputeNodeListener}s are also notified
+ * about node suspension and resumption events.
  */
 public class ComputeServiceEventProxy implements ComputeService {
 
@@ -80,13 +83,113 @@ public class ComputeServiceEventProxy implements ComputeService {
     private List<? extends NodeListener> getNodeListeners() {
         List<NodeListener> listeners = new LinkedList<NodeListener>();
         try {
-            listeners.addAll(Arrays.asList((NodeListener[]) listenerTracker.getServices()));
+            Object[] services = listenerTracker.getServices();
+            if (services != null) {
+                for (Object service : services) {
+                    listeners.add((NodeListener) service);
+                }
+            }
         } catch (Exception ex) {
             LOGGER.warn("Could not lookup node listeners. Listeners will not receive the last event.");
         }
         return listeners;
     }
 
+    private boolean hasComputeNodeListeners() {
+        for (NodeListener listener : getNodeListeners()) {
+            if (listener instanceof ComputeNodeListener) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wraps the filter of an operation on the nodes matching it, so that the nodes it matches are recorded while the
+     * underlying service applies it. This tells which nodes the operation affected without listing the nodes again.
+     * @param filter
+     * @return
+     */
+    private RecordingFilter recordMatches(Predicate<NodeMetadata> filter) {
+        return hasComputeNodeListeners() ? new RecordingFilter(filter) : null;
+    }
+
+    private NodeMetadata getNodeMetadataQuietly(String id) {
+        if (!hasComputeNodeListeners()) {
+            return null;
+        }
+        try {
+            return computeService.getNodeMetadata(id);
+        } catch (Exception ex) {
+            LOGGER.error("Error while retrieving node metadata.", ex);
+            return null;
+        }
+    }
+
+    private void notifyCreated(Iterable<? extends NodeMetadata> nodes) {
+        try {
+            for (NodeListener listener : getNodeListeners()) {
+                for (NodeMetadata node : nodes) {
+                    if (listener instanceof ComputeNodeListener) {
+                        ((ComputeNodeListener) listener).nodeCreated(this, node);
+                    } else {
+                        listener.nodeCreated(node);
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            LOGGER.error("Error while notifying node listeners.", ex);
+        }
+    }
+
+    private void notifyDestroyed(Iterable<? extends NodeMetadata> nodes) {
+        try {
+            for (NodeListener listener : getNodeListeners()) {
+                for (NodeMetadata node : nodes) {
+                    if (listener instanceof ComputeNodeListener) {
+                        ((ComputeNodeListener) listener).nodeDestroyed(this, node);
+                    } else {
+                        listener.nodeDestroyed(node);
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            LOGGER.error("Error while notifying node listeners.", ex);
+        }
+    }
+
+    private void notifySuspended(Iterable<? extends NodeMetadata> nodes) {
+        try {
+            for (NodeListener listener : getNodeListeners()) {
+                if (listener instanceof ComputeNodeListener) {
+                    for (NodeMetadata node : nodes) {
+                        ((ComputeNodeListener) listener).nodeSuspended(this, node);
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            LOGGER.error("Error while notifying node listeners.", ex);
+        }
+    }
+
+    private void notifyResumed(Iterable<? extends NodeMetadata> nodes) {
+        try {
+            for (NodeListener listener : getNodeListeners()) {
+                if (listener instanceof ComputeNodeListener) {
+                    for (NodeMetadata node : nodes) {
+                        ((ComputeNodeListener) listener).nodeResumed(this, node);
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            LOGGER.error("Error while notifying node listeners.", ex);
+        }
+    }
+
+    private static Iterable<NodeMetadata> nonNull(NodeMetadata node) {
+        return node != null ? Collections.singleton(node) : Collections.<NodeMetadata>emptySet();
+    }
+
     /**
      * @return a reference to the context that created this ComputeService.
      */
@@ -198,15 +301,7 @@ public class ComputeServiceEventProxy implements ComputeService {
     @Override
     public Set<? extends NodeMetadata> createNodesInGroup(String group, int count, Template template) throws RunNodesException {
         Set<? extends NodeMetadata> metadata = computeService.createNodesInGroup(group, count, template);
-        try {
-            for (NodeListener listener : getNodeListeners()) {
-                for (NodeMetadata node : metadata) {
-                    listener.nodeCreated(node);
-                }
-            }
-        } catch (Exception ex) {
-            LOGGER.error("Error while notifying node listeners.", ex);
-        }
+        notifyCreated(metadata);
         return metadata;
     }
 
@@ -217,15 +312,7 @@ public class ComputeServiceEventProxy implements ComputeService {
     @Override
     public Set<? extends NodeMetadata> createNodesInGroup(String group, int count, TemplateOptions templateOptions) throws RunNodesException {
         Set<? extends NodeMetadata> metadata = computeService.createNodesInGroup(group, count, templateOptions);
-        try {
-            for (NodeListener listener : getNodeListeners()) {
-                for (NodeMetadata node : metadata) {
-                    listener.nodeCreated(node);
-                }
-            }
-        } catch (Exception ex) {
-            LOGGER.error("Error while notifying node listeners.", ex);
-        }
+        notifyCreated(metadata);
         return metadata;
     }
 
@@ -236,15 +323,7 @@ public class ComputeServiceEventProxy implements ComputeService {
     @Override
     public Set<? extends NodeMetadata> createNodesInGroup(String group, int count) throws RunNodesException {
         Set<? extends NodeMetadata> metadata = computeService.createNodesInGroup(group, count);
-        try {
-            for (NodeListener listener : getNodeListeners()) {
-                for (NodeMetadata node : metadata) {
-                    listener.nodeCreated(node);
-                }
-            }
-        } catch (Exception ex) {
-            LOGGER.error("Error while notifying node listeners.", ex);
-        }
+        notifyCreated(metadata);
         return metadata;
     }
 
@@ -259,6 +338,7 @@ public class ComputeServiceEventProxy implements ComputeService {
     @Override
     public void resumeNode(String id) {
         computeService.resumeNode(id);
+        notifyResumed(nonNull(getNodeMetadataQuietly(id)));
     }
 
     /**
@@ -275,7 +355,13 @@ public class ComputeServiceEventProxy implements ComputeService {
      */
     @Override
     public void resumeNodesMatching(Predicate<NodeMetadata> filter) {
-        computeService.resumeNodesMatching(filter);
+        RecordingFilter recording = recordMatches(filter);
+        if (recording == null) {
+            computeService.resumeNodesMatching(filter);
+        } else {
+            computeService.resumeNodesMatching(recording);
+            notifyResumed(recording.getMatches());
+        }
     }
 
     /**
@@ -291,6 +377,7 @@ public class ComputeServiceEventProxy implements ComputeService {
     @Override
     public void suspendNode(String id) {
         computeService.suspendNode(id);
+        notifySuspended(nonNull(getNodeMetadataQuietly(id)));
     }
 
     /**
@@ -307,7 +394,13 @@ public class ComputeServiceEventProxy implements ComputeService {
      */
     @Override
     public void suspendNodesMatching(Predicate<NodeMetadata> filter) {
-        computeService.suspendNodesMatching(filter);
+        RecordingFilter recording = recordMatches(filter);
+        if (recording == null) {
+            computeService.suspendNodesMatching(filter);
+        } else {
+            computeService.suspendNodesMatching(recording);
+            notifySuspended(recording.getMatches());
+        }
     }
 
     /**
@@ -323,14 +416,7 @@ public class ComputeServiceEventProxy implements ComputeService {
             LOGGER.error("Error while retrieving node metadata.", ex);
         }
         computeService.destroyNode(id);
-        try {
-            for (NodeListener listener : getNodeListeners()) {
-                listener.nodeDestroyed(node);
-            }
-        } catch (Exception ex) {
-            LOGGER.error("Error while notifying node listeners.", ex);
-        }
-
+        notifyDestroyed(nonNull(node));
     }
 
     /**
@@ -343,15 +429,7 @@ public class ComputeServiceEventProxy implements ComputeService {
     @Override
     public Set<? extends NodeMetadata> destroyNodesMatching(Predicate<NodeMetadata> filter) {
         Set<? extends NodeMetadata> metadata = computeService.destroyNodesMatching(filter);
-        try {
-            for (NodeListener listener : getNodeListeners()) {
-                for (NodeMetadata node : metadata) {
-                    listener.nodeCreated(node);
-                }
-            }
-        } catch (Exception ex) {
-            LOGGER.error("Error while notifying node listeners.", ex);
-        }
+        notifyDestroyed(metadata);
         return metadata;
     }
 
@@ -528,4 +606,30 @@ public class ComputeServiceEventProxy implements ComputeService {
     public Optional<ImageExtension> getImageExtension() {
         return computeService.getImageExtension();
     }
+
+    /**
+     * A filter that records the nodes it matched, once per node id.
+     */
+    private static class RecordingFilter implements Predicate<NodeMetadata> {
+
+        private final Predicate<NodeMetadata> filter;
+        private final Map<String, NodeMetadata> matches = new ConcurrentHashMap<String, NodeMetadata>();
+
+        private RecordingFilter(Predicate<NodeMetadata> filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean apply(NodeMetadata input) {
+            boolean match = filter.apply(input);
+            if (match && input != null && input.getId() != null) {
+                matches.put(input.getId(), input);
+            }
+            return match;
+        }
+
+        public Collection<NodeMetadata> getMatches() {
+            return matches.values();
+        }
+    }
 }
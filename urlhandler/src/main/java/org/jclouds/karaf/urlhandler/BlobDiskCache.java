@@ -0,0 +1,434 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jclouds.karaf.urlhandler;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.karaf.utils.blobstore.RangedDownloader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A read-through disk cache for blobs, keyed by provider, container and blob.
+ * Each cached blob is stored as a data file and a metadata file that holds its ETag and last modified date.
+ * A cached blob is served only while its ETag (or else its last modified date) matches the blob metadata,
+ * or while a conditional get finds that the blob has not been modified.
+ * New downloads are written to a temp file and published with a rename, so that readers never see a partial blob.
+ * When the cache grows over its maximum size, the least recently used blobs are evicted.
+ */
+public class BlobDiskCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlobDiskCache.class);
+
+    private static final String DATA_SUFFIX = ".blob";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String PART_SUFFIX = ".part";
+    private static final long PART_MAX_AGE = TimeUnit.DAYS.toMillis(1);
+
+    private static final String KEY = "key";
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "lastModified";
+    private static final String LENGTH = "length";
+
+    private final File directory;
+    private volatile long maxSize;
+
+    private volatile RangedDownloader rangedDownloader;
+    private volatile long rangedThreshold = Long.MAX_VALUE;
+
+    private final ConcurrentMap<String, CountDownLatch> downloads = new ConcurrentHashMap<String, CountDownLatch>();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long size;
+    private boolean loaded;
+
+    /**
+     * Constructor
+     *
+     * @param directory the directory that holds the cached blobs.
+     * @param maxSize   the maximum size in bytes of the cached blobs.
+     */
+    public BlobDiskCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the content of the blob, from the cache if the cached copy is still current, otherwise after
+     * downloading it into the cache. When the metadata is not known, the cached copy is validated with a conditional
+     * get, which also downloads the blob if it has changed, so that a read takes a single request.
+     * @param key           the key of the blob (e.g. provider/container/blob).
+     * @param blobStore
+     * @param containerName
+     * @param blobName
+     * @param metadata      the current metadata of the blob if it is known, or null to validate the cached copy.
+     * @return
+     * @throws IOException
+     */
+    public InputStream get(String key, BlobStore blobStore, String containerName, String blobName, BlobMetadata metadata) throws IOException {
+        //The entry that was cached before waiting for a download, if it was waited for.
+        Entry stale = null;
+        boolean waited = false;
+        while (true) {
+            Entry entry = lookup(key);
+            //Only an entry that the waited for download has published is known to be current. A download that failed
+            //or found the blob missing publishes nothing, so the entry from before is validated as usual.
+            boolean published = waited && entry != null && entry != stale;
+            if (entry != null && entry.data.isFile() && (published || (metadata != null && entry.matches(metadata)))) {
+                entry.data.setLastModified(System.currentTimeMillis());
+                return read(entry.data);
+            }
+            //Only one read downloads a blob at a time, the others wait for it and read the blob from the cache.
+            CountDownLatch download = new CountDownLatch(1);
+            CountDownLatch running = downloads.putIfAbsent(key, download);
+            if (running != null) {
+                try {
+                    running.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for the download of blob " + blobName + ".");
+                }
+                stale = entry;
+                waited = true;
+                continue;
+            }
+            try {
+                return fetch(key, entry, blobStore, containerName, blobName);
+            } finally {
+                downloads.remove(key, download);
+                download.countDown();
+            }
+        }
+    }
+
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Sets the downloader of the blobs that are larger than the threshold, which fetches them as concurrent ranges.
+     * An interrupted ranged download is resumed by the next read of the blob.
+     * @param rangedDownloader
+     * @param rangedThreshold
+     */
+    public void setRangedDownloader(RangedDownloader rangedDownloader, long rangedThreshold) {
+        this.rangedDownloader = rangedDownloader;
+        this.rangedThreshold = rangedThreshold;
+    }
+
+    /**
+     * Gets the blob, unless the cached copy is still current, and caches it.
+     * @param key
+     * @param entry         the cached copy or null if there is none.
+     * @param blobStore
+     * @param containerName
+     * @param blobName
+     * @return
+     * @throws IOException
+     */
+    private InputStream fetch(String key, Entry entry, BlobStore blobStore, String containerName, String blobName) throws IOException {
+        Blob blob;
+        try {
+            blob = blobStore.getBlob(containerName, blobName, conditionsOf(entry));
+        } catch (RuntimeException e) {
+            if (entry != null && isNotModified(e)) {
+                entry.data.setLastModified(System.currentTimeMillis());
+                return read(entry.data);
+            }
+            throw e;
+        }
+        if (blob == null) {
+            throw new FileNotFoundException("Blob " + blobName + " does not exists");
+        }
+        BlobMetadata metadata = blob.getMetadata();
+        InputStream in = blob.getPayload().openStream();
+        if (!isValidated(metadata) || (!directory.isDirectory() && !directory.mkdirs())) {
+            return in;
+        }
+
+        String name = Hashing.sha1().hashString(key, Charsets.UTF_8).toString();
+        RangedDownloader downloader = rangedDownloader;
+        if (downloader != null && RangedDownloader.lengthOf(metadata) > rangedThreshold) {
+            //Large blobs are fetched as concurrent ranges instead, which stops the transfer of the full get.
+            Closeables.close(in, true);
+            File part = new File(directory, name + PART_SUFFIX);
+            downloader.download(blobStore, containerName, blobName, metadata, part);
+            Entry downloaded = new Entry(key, new File(directory, name + DATA_SUFFIX), new File(directory, name + META_SUFFIX),
+                    metadata.getETag(), time(metadata), part.length());
+            publish(downloaded, part);
+            return read(downloaded.data);
+        }
+
+        File tmpData = File.createTempFile(name, TMP_SUFFIX, directory);
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmpData);
+            ByteStreams.copy(in, out);
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            tmpData.delete();
+            throw e;
+        } finally {
+            Closeables.close(in, true);
+            Closeables.close(out, true);
+        }
+
+        Entry downloaded = new Entry(key, new File(directory, name + DATA_SUFFIX), new File(directory, name + META_SUFFIX),
+                metadata.getETag(), time(metadata), tmpData.length());
+        publish(downloaded, tmpData);
+        return read(downloaded.data);
+    }
+
+    /**
+     * Returns the options that get the blob only if it does not match the cached copy.
+     * @param entry the cached copy or null if there is none.
+     * @return
+     */
+    private static GetOptions conditionsOf(Entry entry) {
+        if (entry == null || !entry.data.isFile()) {
+            return GetOptions.NONE;
+        } else if (entry.etag != null) {
+            return GetOptions.Builder.ifETagDoesntMatch(entry.etag);
+        } else if (entry.lastModified > 0) {
+            return GetOptions.Builder.ifModifiedSince(new Date(entry.lastModified));
+        }
+        return GetOptions.NONE;
+    }
+
+    private static boolean isNotModified(Exception e) {
+        for (Throwable cause : Throwables.getCausalChain(e)) {
+            if (cause instanceof HttpResponseException) {
+                HttpResponse response = ((HttpResponseException) cause).getResponse();
+                return response != null && response.getStatusCode() == 304;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads a cached blob straight from its file channel.
+     * @param data
+     * @return
+     * @throws IOException
+     */
+    private static InputStream read(File data) throws IOException {
+        return Channels.newInputStream(new FileInputStream(data).getChannel());
+    }
+
+    /**
+     * Moves the downloaded blob and its metadata into place and evicts the least recently used blobs if needed.
+     * @param entry
+     * @param tmpData
+     * @throws IOException
+     */
+    private void publish(Entry entry, File tmpData) throws IOException {
+        File tmpMeta = File.createTempFile(entry.data.getName(), TMP_SUFFIX, directory);
+        Properties properties = new Properties();
+        properties.setProperty(KEY, entry.key);
+        if (entry.etag != null) {
+            properties.setProperty(ETAG, entry.etag);
+        }
+        properties.setProperty(LAST_MODIFIED, String.valueOf(entry.lastModified));
+        properties.setProperty(LENGTH, String.valueOf(entry.length));
+        OutputStream out = new FileOutputStream(tmpMeta);
+        try {
+            properties.store(out, null);
+        } finally {
+            Closeables.close(out, true);
+        }
+        if (!rename(tmpData, entry.data) || !rename(tmpMeta, entry.meta)) {
+            tmpData.delete();
+            tmpMeta.delete();
+            throw new IOException("Could not publish " + entry.data + " to the blob cache.");
+        }
+
+        synchronized (entries) {
+            Entry previous = entries.put(entry.key, entry);
+            if (previous != null) {
+                size -= previous.length;
+            }
+            size += entry.length;
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (size > maxSize && iterator.hasNext()) {
+                Entry eldest = iterator.next();
+                if (eldest == entry) {
+                    continue;
+                }
+                iterator.remove();
+                size -= eldest.length;
+                eldest.meta.delete();
+                eldest.data.delete();
+                LOGGER.debug("Evicted {} from the blob cache.", eldest.key);
+            }
+        }
+    }
+
+    private Entry lookup(String key) {
+        synchronized (entries) {
+            if (!loaded) {
+                load();
+                loaded = true;
+            }
+            return entries.get(key);
+        }
+    }
+
+    /**
+     * Reads the metadata of the blobs that are already in the cache directory, least recently used first,
+     * and deletes the leftovers of interrupted downloads.
+     */
+    private void load() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(META_SUFFIX) || name.endsWith(TMP_SUFFIX)
+                        || name.endsWith(PART_SUFFIX) || name.endsWith(PART_SUFFIX + RangedDownloader.JOURNAL_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File left, File right) {
+                long l = dataFile(left).lastModified();
+                long r = dataFile(right).lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(TMP_SUFFIX)) {
+                file.delete();
+                continue;
+            } else if (!file.getName().endsWith(META_SUFFIX)) {
+                //Keep recent ranged downloads, so that they can be resumed.
+                if (System.currentTimeMillis() - file.lastModified() > PART_MAX_AGE) {
+                    file.delete();
+                }
+                continue;
+            }
+            File data = dataFile(file);
+            Properties properties = new Properties();
+            InputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                properties.load(in);
+                Entry entry = new Entry(properties.getProperty(KEY), data, file, properties.getProperty(ETAG),
+                        Long.parseLong(properties.getProperty(LAST_MODIFIED, "0")), Long.parseLong(properties.getProperty(LENGTH, "-1")));
+                if (entry.key != null && data.length() == entry.length) {
+                    entries.put(entry.key, entry);
+                    size += entry.length;
+                    continue;
+                }
+            } catch (Exception ex) {
+                LOGGER.debug("Ignoring unreadable blob cache entry {}.", file);
+            } finally {
+                try {
+                    Closeables.close(in, true);
+                } catch (IOException e) {
+                    //Not thrown when swallowing.
+                }
+            }
+            file.delete();
+            data.delete();
+        }
+    }
+
+    private static File dataFile(File meta) {
+        String name = meta.getName();
+        return new File(meta.getParentFile(), name.substring(0, name.length() - META_SUFFIX.length()) + DATA_SUFFIX);
+    }
+
+    private static boolean rename(File source, File target) {
+        //Rename does not replace an existing file on all platforms.
+        return source.renameTo(target) || (target.delete() && source.renameTo(target));
+    }
+
+    private static boolean isValidated(StorageMetadata metadata) {
+        return metadata.getETag() != null || metadata.getLastModified() != null;
+    }
+
+    private static long time(StorageMetadata metadata) {
+        return metadata.getLastModified() != null ? metadata.getLastModified().getTime() : 0;
+    }
+
+    private static class Entry {
+        private final String key;
+        private final File data;
+        private final File meta;
+        private final String etag;
+        private final long lastModified;
+        private final long length;
+
+        private Entry(String key, File data, File meta, String etag, long lastModified, long length) {
+            this.key = key;
+            this.data = data;
+            this.meta = meta;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        /**
+         * Returns true if the cached blob is the current one, by ETag if there is one or else by last modified date.
+         * @param metadata
+         * @return
+         */
+        private boolean matches(StorageMetadata metadata) {
+            if (metadata.getETag() != null && etag != null) {
+                return metadata.getETag().equals(etag);
+            }
+            return metadata.getLastModified() != null && metadata.getLastModified().getTime() == lastModified;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jclouds.karaf.urlhandler;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.inject.Module;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A pool of {@link BlobStoreContext}s keyed by provider, identity and endpoint, so that credentialed blob: URLs
+ * reuse their context instead of building a new one for every URL.
+ * Contexts that are idle for too long or that are the least recently used when the pool is full are removed,
+ * which the pool checks periodically, and so is a context whose credential has changed.
+ * A removed context is closed once all its {@link Lease}s are released, so that the streams that still use it
+ * are not cut off.
+ */
+public class BlobStoreContextPool implements ContextPoolMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlobStoreContextPool.class);
+
+    private final Cache<Key, PooledContext> contexts;
+    //The contexts that are being built, by key.
+    private final ConcurrentMap<Key, FutureTask<PooledContext>> builds = new ConcurrentHashMap<Key, FutureTask<PooledContext>>();
+    private final ScheduledExecutorService cleaner;
+
+    /**
+     * Constructor
+     *
+     * @param maxSize  the maximum number of pooled contexts.
+     * @param idleTime the time in milliseconds after which an unused context is closed.
+     */
+    public BlobStoreContextPool(long maxSize, long idleTime) {
+        this.contexts = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterAccess(idleTime, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .removalListener(new RemovalListener<Key, PooledContext>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<Key, PooledContext> notification) {
+                        PooledContext pooled = notification.getValue();
+                        if (pooled != null) {
+                            LOGGER.debug("Removing blob store context for {} ({}).", notification.getKey(), notification.getCause());
+                            pooled.retire();
+                        }
+                    }
+                })
+                .build();
+        this.cleaner = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("jclouds-context-pool-cleaner").setDaemon(true).build());
+        long interval = Math.max(1000, idleTime / 2);
+        this.cleaner.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                contexts.cleanUp();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Leases the pooled blob store for the provider, identity and endpoint, creating it if needed.
+     * A context is built outside of the lock of the pool, so that a slow build does not hold up the leases of the
+     * other keys, and only once per key, so that concurrent leases of the same key wait for the same build.
+     * The lease has to be released once the blob store is no longer used.
+     * @param providerOrApi
+     * @param identity
+     * @param credential
+     * @param endpoint      the endpoint or null for the default endpoint of the provider.
+     * @return
+     */
+    public Lease lease(final String providerOrApi, final String identity, final String credential, final String endpoint) {
+        final Key key = new Key(providerOrApi, identity, endpoint);
+        final String fingerprint = Hashing.sha1().hashString(credential, Charsets.UTF_8).toString();
+        while (true) {
+            synchronized (contexts) {
+                PooledContext pooled = contexts.getIfPresent(key);
+                if (pooled != null && pooled.fingerprint.equals(fingerprint) && pooled.acquire()) {
+                    return new Lease(pooled.context.getBlobStore(), pooled);
+                }
+            }
+            FutureTask<PooledContext> build = new FutureTask<PooledContext>(new Callable<PooledContext>() {
+                @Override
+                public PooledContext call() throws Exception {
+                    ContextBuilder builder = ContextBuilder.newBuilder(providerOrApi).credentials(identity, credential)
+                            .modules(new LinkedHashSet<Module>()).overrides(new Properties());
+                    if (endpoint != null) {
+                        builder.endpoint(endpoint);
+                    }
+                    PooledContext built = new PooledContext(builder.build(BlobStoreContext.class), fingerprint);
+                    synchronized (contexts) {
+                        contexts.put(key, built);
+                    }
+                    return built;
+                }
+            });
+            FutureTask<PooledContext> running = builds.putIfAbsent(key, build);
+            if (running == null) {
+                running = build;
+                build.run();
+            }
+            try {
+                //The lease is taken from the pool on the next pass, where a context built for another credential
+                //is replaced by one for this credential.
+                Uninterruptibles.getUninterruptibly(running);
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            } finally {
+                builds.remove(key, running);
+            }
+        }
+    }
+
+    /**
+     * Removes all the pooled contexts, which are closed once their leases are released.
+     */
+    public void close() {
+        cleaner.shutdownNow();
+        contexts.invalidateAll();
+        contexts.cleanUp();
+    }
+
+    @Override
+    public long getSize() {
+        return contexts.size();
+    }
+
+    @Override
+    public long getHitCount() {
+        return contexts.stats().hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return contexts.stats().missCount();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return contexts.stats().evictionCount();
+    }
+
+    /**
+     * The use of a blob store, which keeps its context open until it is released.
+     */
+    public static class Lease implements Closeable {
+        private final BlobStore blobStore;
+        private final PooledContext pooled;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        /**
+         * Creates a lease of a blob store that is not pooled, so that releasing it does nothing.
+         * @param blobStore
+         * @return
+         */
+        public static Lease of(BlobStore blobStore) {
+            return new Lease(blobStore, null);
+        }
+
+        private Lease(BlobStore blobStore, PooledContext pooled) {
+            this.blobStore = blobStore;
+            this.pooled = pooled;
+        }
+
+        public BlobStore getBlobStore() {
+            return blobStore;
+        }
+
+        /**
+         * Releases the lease, which closes the context if it has been removed from the pool and this was its last lease.
+         */
+        @Override
+        public void close() {
+            if (pooled != null && released.compareAndSet(false, true)) {
+                pooled.release();
+            }
+        }
+    }
+
+    private static class PooledContext {
+        private final BlobStoreContext context;
+        private final String fingerprint;
+        private int leases;
+        private boolean retired;
+
+        private PooledContext(BlobStoreContext context, String fingerprint) {
+            this.context = context;
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * Takes a lease of the context.
+         * @return false if the context has been removed from the pool and may already be closed.
+         */
+        private synchronized boolean acquire() {
+            if (retired) {
+                return false;
+            }
+            leases++;
+            return true;
+        }
+
+        private void release() {
+            synchronized (this) {
+                if (--leases > 0 || !retired) {
+                    return;
+                }
+            }
+            context.close();
+        }
+
+        private void retire() {
+            synchronized (this) {
+                retired = true;
+                if (leases > 0) {
+                    return;
+                }
+            }
+            context.close();
+        }
+    }
+
+    private static class Key {
+        private final String providerOrApi;
+        private final String identity;
+        private final String endpoint;
+
+        private Key(String providerOrApi, String identity, String endpoint) {
+            this.providerOrApi = providerOrApi;
+            this.identity = identity;
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return Objects.equal(providerOrApi, other.providerOrApi) && Objects.equal(identity, other.identity)
+                    && Objects.equal(endpoint, other.endpoint);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(providerOrApi, identity, endpoint);
+        }
+
+        @Override
+        public String toString() {
+            return providerOrApi + "/" + identity + (endpoint != null ? "@" + endpoint : "");
+        }
+    }
+}
@@ -19,39 +19,55 @@
 
 package org.jclouds.karaf.urlhandler;
 
-import com.google.common.io.ByteStreams;
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Closeables;
 import com.google.common.io.Files;
-import com.google.inject.Module;
-import org.jclouds.ContextBuilder;
 import org.jclouds.blobstore.BlobStore;
-import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.ContainerNotFoundException;
 import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.io.ContentMetadata;
 import org.jclouds.karaf.utils.ServiceHelper;
+import org.jclouds.karaf.utils.blobstore.RangedDownloader;
 import org.osgi.service.url.AbstractURLStreamHandlerService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Properties;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BlobUrlHandler extends AbstractURLStreamHandlerService {
 
@@ -59,11 +75,150 @@ public class BlobUrlHandler extends AbstractURLStreamHandlerService {
 
     private final Logger logger = LoggerFactory.getLogger(BlobUrlHandler.class);
 
-    private static String SYNTAX = "blob:provider/container/blob?id=?????";
+    private static String SYNTAX = "blob:provider/container/blob?id=?????&endpoint=?????";
+
+    //The providers and apis that accept a payload of unknown length (chunked), which lets uploads stream.
+    private static final String DEFAULT_STREAMING_PROVIDERS = "transient,filesystem,swift,swift-keystone,openstack-swift,"
+            + "cloudfiles-us,cloudfiles-uk,rackspace-cloudfiles-us,rackspace-cloudfiles-uk,hpcloud-objectstorage";
+    private static final int DEFAULT_PART_SIZE = 4 * 1024 * 1024;
+    private static final int DEFAULT_MAX_PARTS = 2;
+    private static final long DEFAULT_MULTIPART_THRESHOLD = 32L * 1024 * 1024;
+    private static final long DEFAULT_CACHE_MAX_SIZE = 512L * 1024 * 1024;
+    private static final long DEFAULT_METADATA_TTL = 10;
+    private static final int DEFAULT_UPLOAD_THREADS = 4;
+    private static final int DEFAULT_UPLOAD_QUEUE_SIZE = 16;
+    private static final long DEFAULT_UPLOAD_SLOT_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+    private static final long DEFAULT_UPLOAD_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+    private static final long SHUTDOWN_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    private static final int DEFAULT_RANGED_THREADS = 4;
+    private static final long DEFAULT_RANGE_SIZE = 8L * 1024 * 1024;
+    private static final long DEFAULT_RANGED_THRESHOLD = 64L * 1024 * 1024;
+    private static final long DEFAULT_CONTEXT_POOL_SIZE = 16;
+    private static final long DEFAULT_CONTEXT_IDLE_TIME = TimeUnit.MINUTES.toMillis(10);
 
     private List<BlobStore> blobStores = new LinkedList<BlobStore>();
 
-    private ExecutorService executorService = Executors.newCachedThreadPool();
+    private int uploadThreads = DEFAULT_UPLOAD_THREADS;
+    private int uploadQueueSize = DEFAULT_UPLOAD_QUEUE_SIZE;
+    private long uploadSlotTimeout = DEFAULT_UPLOAD_SLOT_TIMEOUT;
+    private long uploadIdleTimeout = DEFAULT_UPLOAD_IDLE_TIMEOUT;
+    private UploadExecutor uploadExecutor;
+    private ObjectName uploadStatsName;
+
+    //The blobs that are spooled to a temp file until their stream is closed, by a weak reference to the stream.
+    private final Map<Reference<? extends OutputStream>, Spool> spools = new ConcurrentHashMap<Reference<? extends OutputStream>, Spool>();
+    private final ReferenceQueue<OutputStream> abandonedSpools = new ReferenceQueue<OutputStream>();
+
+    private long contextPoolSize = DEFAULT_CONTEXT_POOL_SIZE;
+    private long contextIdleTime = DEFAULT_CONTEXT_IDLE_TIME;
+    private BlobStoreContextPool contextPool;
+    private ObjectName contextPoolName;
+
+    private Set<String> streamingProviders = splitProviders(DEFAULT_STREAMING_PROVIDERS);
+    private int partSize = DEFAULT_PART_SIZE;
+    private int maxParts = DEFAULT_MAX_PARTS;
+    private long multipartThreshold = DEFAULT_MULTIPART_THRESHOLD;
+
+    //Blobs are only cached when there is a karaf data folder to hold them.
+    private boolean cacheEnabled = System.getProperty("karaf.data") != null;
+    private final BlobDiskCache diskCache = new BlobDiskCache(new File(BLOBSTORE_TMP_FOLDER), DEFAULT_CACHE_MAX_SIZE);
+
+    private int rangedThreads = DEFAULT_RANGED_THREADS;
+    private long rangeSize = DEFAULT_RANGE_SIZE;
+    private long rangedThreshold = DEFAULT_RANGED_THRESHOLD;
+
+    //Keeps the metadata of recently accessed blobs, so that a probe and the download that follows share a lookup.
+    private volatile Cache<String, BlobMetadata> metadataCache = createMetadataCache(DEFAULT_METADATA_TTL);
+
+    /**
+     * Creates the upload executor and registers its statistics.
+     */
+    public synchronized void init() {
+        if (uploadExecutor != null) {
+            return;
+        }
+        uploadExecutor = new UploadExecutor(uploadThreads, uploadQueueSize, uploadSlotTimeout);
+        contextPool = new BlobStoreContextPool(contextPoolSize, contextIdleTime);
+        if (rangedThreads > 1) {
+            diskCache.setRangedDownloader(new RangedDownloader(rangedThreads, rangeSize), rangedThreshold);
+        }
+        uploadStatsName = registerMBean(uploadExecutor, UploadStatsMXBean.OBJECT_NAME);
+        contextPoolName = registerMBean(contextPool, ContextPoolMXBean.OBJECT_NAME);
+    }
+
+    /**
+     * Waits for the pending uploads, stops the upload threads and discards the blobs of the streams that are still open.
+     */
+    public synchronized void destroy() {
+        unregisterMBean(uploadStatsName);
+        uploadStatsName = null;
+        unregisterMBean(contextPoolName);
+        contextPoolName = null;
+        if (uploadExecutor != null) {
+            uploadExecutor.shutdown(SHUTDOWN_TIMEOUT);
+            uploadExecutor = null;
+        }
+        //The streams that are still open can no longer upload.
+        for (Spool spool : spools.values()) {
+            if (spool.claim()) {
+                spool.discard();
+            }
+        }
+        spools.clear();
+        if (contextPool != null) {
+            contextPool.close();
+            contextPool = null;
+        }
+    }
+
+    /**
+     * Discards the spooled blobs of the streams that have been garbage collected without being closed,
+     * so that neither their temp files nor their leases leak.
+     */
+    private void discardAbandonedSpools() {
+        Reference<? extends OutputStream> reference;
+        while ((reference = abandonedSpools.poll()) != null) {
+            Spool spool = spools.remove(reference);
+            if (spool != null && spool.claim()) {
+                logger.warn("Discarding blob {}, as its stream was never closed.", spool.tmpBlob);
+                spool.discard();
+            }
+        }
+    }
+
+    private synchronized UploadExecutor getUploadExecutor() {
+        init();
+        return uploadExecutor;
+    }
+
+    private synchronized BlobStoreContextPool getContextPool() {
+        init();
+        return contextPool;
+    }
+
+    private ObjectName registerMBean(Object mbean, String objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(mbean, name);
+                return name;
+            }
+        } catch (Exception ex) {
+            logger.warn("Error while registering MBean " + objectName + ":" + ex.getMessage());
+        }
+        return null;
+    }
+
+    private void unregisterMBean(ObjectName name) {
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (Exception ex) {
+                logger.warn("Error while unregistering MBean " + name + ":" + ex.getMessage());
+            }
+        }
+    }
 
     /**
      * Open the connection for the given URL.
@@ -92,6 +247,7 @@ public class BlobUrlHandler extends AbstractURLStreamHandlerService {
         final String providerOrApi;
         final String containerName;
         final String blobName;
+        final String endpoint;
         final URL url;
 
         public Connection(URL url) {
@@ -119,81 +275,281 @@ public class BlobUrlHandler extends AbstractURLStreamHandlerService {
             } else {
                 id = null;
             }
+            endpoint = parameters != null ? parameters.get("endpoint") : null;
         }
 
         @Override
         public void connect() throws IOException {
         }
 
+        /**
+         * Returns the content of the blob. A missing container or blob is reported by the fetch itself,
+         * so that there is no extra round trip to check them first.
+         */
         @Override
         public InputStream getInputStream() throws IOException {
+            BlobStoreContextPool.Lease lease = null;
             try {
-                BlobStore blobStore = ServiceHelper.getService(id, providerOrApi, blobStores);
-                if (blobStore == null && url.getUserInfo() != null) {
-                    String userInfo = url.getUserInfo();
-                    String[] ui = userInfo.split(":");
-                    if (ui != null && ui.length == 2) {
-                        String identity = ui[0];
-                        String credential = ui[1];
-                        blobStore = createBlobStore(providerOrApi, identity, credential, new LinkedHashSet<Module>(), new Properties());
-                        blobStores.add(blobStore);
+                lease = lease();
+                BlobStore blobStore = lease.getBlobStore();
+                InputStream in;
+                if (cacheEnabled) {
+                    init();
+                    in = diskCache.get(getCacheKey(), blobStore, containerName, blobName, metadataCache.getIfPresent(getCacheKey()));
+                } else {
+                    Blob blob = blobStore.getBlob(containerName, blobName);
+                    if (blob == null) {
+                        throw new FileNotFoundException("Blob " + blobName + " does not exists");
                     }
+                    metadataCache.put(getCacheKey(), blob.getMetadata());
+                    in = blob.getPayload().openStream();
                 }
-                if (blobStore == null) {
-                    throw new IOException("BlobStore service not available for provider " + providerOrApi);
+                //The stream may still read from the blob store, so it keeps the lease until it is closed.
+                final BlobStoreContextPool.Lease streamLease = lease;
+                lease = null;
+                return new FilterInputStream(in) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            streamLease.close();
+                        }
+                    }
+                };
+            } catch (ContainerNotFoundException e) {
+                throw (IOException) new FileNotFoundException("Container " + containerName + " does not exists").initCause(e);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw (IOException) new IOException("Error opening blob protocol url").initCause(e);
+            } finally {
+                if (lease != null) {
+                    lease.close();
                 }
-                if (!blobStore.containerExists(containerName)) {
-                    throw new IOException("Container " + containerName + " does not exists");
-                } else if (!blobStore.blobExists(containerName, blobName)) {
-                    throw new IOException("Blob " + blobName + " does not exists");
+            }
+        }
+
+        @Override
+        public int getContentLength() {
+            Long length = getContentMetadataLength();
+            return length != null && length <= Integer.MAX_VALUE ? length.intValue() : -1;
+        }
+
+        @Override
+        public String getContentType() {
+            BlobMetadata metadata = getMetadata();
+            return metadata != null && metadata.getContentMetadata() != null ? metadata.getContentMetadata().getContentType() : null;
+        }
+
+        @Override
+        public long getLastModified() {
+            BlobMetadata metadata = getMetadata();
+            return metadata != null && metadata.getLastModified() != null ? metadata.getLastModified().getTime() : 0;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            if (name == null) {
+                return null;
+            } else if ("content-length".equalsIgnoreCase(name)) {
+                Long length = getContentMetadataLength();
+                return length != null ? String.valueOf(length) : null;
+            } else if ("content-type".equalsIgnoreCase(name)) {
+                return getContentType();
+            } else if ("last-modified".equalsIgnoreCase(name)) {
+                long lastModified = getLastModified();
+                if (lastModified == 0) {
+                    return null;
                 }
+                SimpleDateFormat format = new SimpleDateFormat(ContentMetadata.RFC1123_DATE_PATTERN, Locale.US);
+                format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                return format.format(new Date(lastModified));
+            } else if ("etag".equalsIgnoreCase(name)) {
+                BlobMetadata metadata = getMetadata();
+                return metadata != null ? metadata.getETag() : null;
+            }
+            return null;
+        }
 
-                Blob blob = blobStore.getBlob(containerName, blobName);
+        private Long getContentMetadataLength() {
+            BlobMetadata metadata = getMetadata();
+            return metadata != null && metadata.getContentMetadata() != null ? metadata.getContentMetadata().getContentLength() : null;
+        }
 
-                return blob.getPayload().getInput();
-            } catch (Exception e) {
-                throw (IOException) new IOException("Error opening blob protocol url").initCause(e);
+        /**
+         * Returns the metadata of the blob, from the metadata cache if it has been looked up recently.
+         * @return the metadata or null if the blob does not exist or can't be reached.
+         */
+        private BlobMetadata getMetadata() {
+            String key = getCacheKey();
+            BlobMetadata metadata = metadataCache.getIfPresent(key);
+            if (metadata == null) {
+                try {
+                    BlobStoreContextPool.Lease lease = lease();
+                    try {
+                        metadata = lease.getBlobStore().blobMetadata(containerName, blobName);
+                    } finally {
+                        lease.close();
+                    }
+                    if (metadata != null) {
+                        metadataCache.put(key, metadata);
+                    }
+                } catch (Exception e) {
+                    logger.debug("Could not read the metadata of blob " + blobName + ":" + e.getMessage());
+                }
             }
+            return metadata;
         }
 
+        /**
+         * Leases the pooled blob store for the provider, identity and the optional endpoint parameter of the url,
+         * if the url carries credentials, or else the blob store service for the url.
+         * @return
+         * @throws IOException
+         */
+        private BlobStoreContextPool.Lease lease() throws IOException {
+            String userInfo = url.getUserInfo();
+            if (userInfo != null) {
+                String[] ui = userInfo.split(":");
+                if (ui.length == 2) {
+                    return getContextPool().lease(providerOrApi, ui[0], ui[1], endpoint);
+                }
+            }
+            try {
+                return BlobStoreContextPool.Lease.of(ServiceHelper.getService(id, providerOrApi, blobStores));
+            } catch (IllegalArgumentException e) {
+                throw (IOException) new IOException("BlobStore service not available for provider " + providerOrApi).initCause(e);
+            }
+        }
+
+        /**
+         * Returns a stream that uploads the blob. Providers that accept a payload of unknown length get the bytes
+         * streamed to them as they are written, with bounded memory. For the rest the blob is spooled to a temp file,
+         * which is uploaded (as multipart if it is large) once the stream is closed.
+         */
         @Override
         public OutputStream getOutputStream() throws IOException {
+            BlobStoreContextPool.Lease lease = null;
             try {
-                final BlobStore blobStore = ServiceHelper.getService(id, providerOrApi, blobStores);
+                lease = lease();
+                final BlobStore blobStore = lease.getBlobStore();
+                metadataCache.invalidate(getCacheKey());
                 if (!blobStore.containerExists(containerName)) {
                     blobStore.createContainerInLocation(null, containerName);
                 }
+                final UploadExecutor executor = getUploadExecutor();
+                if (isStreaming(blobStore)) {
+                    //The upload starts right away, so wait for a slot before anything is written.
+                    executor.acquire();
+                    try {
+                        OutputStream out = new StreamingBlobOutputStream(blobStore, lease, containerName, blobName, executor,
+                                partSize, maxParts, uploadIdleTimeout);
+                        lease = null;
+                        return out;
+                    } catch (RejectedExecutionException e) {
+                        //The executor has already released the slot.
+                        throw e;
+                    } catch (RuntimeException e) {
+                        executor.release();
+                        throw e;
+                    }
+                }
 
-                final CountDownLatch readLatch = new CountDownLatch(1);
+                discardAbandonedSpools();
                 final File tmpDir = Files.createTempDir();
                 final File tmpBlob = File.createTempFile("blob", null, tmpDir);
+                //The upload runs after the stream is closed, so it keeps the lease until it completes.
+                final Spool spool = new Spool(new FileOutputStream(tmpBlob), tmpBlob, tmpDir, lease);
+                lease = null;
+
+                OutputStream out = new FilterOutputStream(spool.out) {
+                    private boolean closed;
 
-                FileOutputStream out = new FileOutputStream(tmpBlob) {
                     @Override
-                    public void close() throws IOException {
-                        readLatch.countDown();
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
                     }
-                };
 
-                Runnable putBlob = new Runnable() {
+                    /**
+                     * Waits for a slot and submits the upload. The slot is only taken here, so that a stream that is
+                     * never closed does not hold one, while a burst of writes still slows down its writers.
+                     */
                     @Override
-                    public void run() {
+                    public void close() throws IOException {
+                        if (closed) {
+                            return;
+                        }
+                        closed = true;
+                        if (!spool.claim()) {
+                            throw new IOException("Blob " + blobName + " has been discarded, as the blob url handler has stopped.");
+                        }
+                        try {
+                            out.close();
+                            executor.acquire();
+                        } catch (IOException e) {
+                            spool.discard();
+                            throw e;
+                        }
                         try {
-                            readLatch.await();
-                            Blob blob = blobStore.blobBuilder(blobName).payload(tmpBlob).build();
-                            blobStore.putBlob(containerName, blob);
-                            tmpBlob.delete();
-                            tmpDir.delete();
-                        } catch (InterruptedException e) {
-                            logger.error("Interrupted while waiting on blob read.", e);
+                            executor.submit(containerName + "/" + blobName, new Callable<Long>() {
+                                @Override
+                                public Long call() throws Exception {
+                                    try {
+                                        long length = tmpBlob.length();
+                                        Blob blob = blobStore.blobBuilder(blobName).payload(Files.asByteSource(tmpBlob)).contentLength(length).build();
+                                        PutOptions options = length > multipartThreshold ? PutOptions.Builder.multipart() : PutOptions.NONE;
+                                        blobStore.putBlob(containerName, blob, options);
+                                        return length;
+                                    } finally {
+                                        spool.discard();
+                                    }
+                                }
+                            });
+                        } catch (RuntimeException e) {
+                            spool.discard();
+                            throw e;
                         }
                     }
                 };
-                executorService.submit(putBlob);
+                spools.put(new WeakReference<OutputStream>(out, abandonedSpools), spool);
                 return out;
+            } catch (IOException e) {
+                throw e;
             } catch (Exception e) {
                 throw (IOException) new IOException("Error opening blob protocol url").initCause(e);
+            } finally {
+                if (lease != null) {
+                    lease.close();
+                }
+            }
+        }
+
+        /**
+         * Returns the key of the blob in the metadata and disk caches. The context id, the identity and the endpoint
+         * are part of the key, as different contexts, accounts or regions of the same provider see different containers.
+         * @return
+         */
+        private String getCacheKey() {
+            StringBuilder key = new StringBuilder();
+            String userInfo = url.getUserInfo();
+            if (userInfo != null) {
+                int index = userInfo.indexOf(':');
+                key.append(index >= 0 ? userInfo.substring(0, index) : userInfo).append('@');
+            }
+            key.append(providerOrApi);
+            if (id != null) {
+                key.append('#').append(id);
             }
+            if (endpoint != null) {
+                key.append('[').append(endpoint).append(']');
+            }
+            return key.append('/').append(containerName).append('/').append(blobName).toString();
+        }
+
+        private boolean isStreaming(BlobStore blobStore) {
+            String blobStoreId = ServiceHelper.toId(blobStore);
+            return streamingProviders.contains(providerOrApi) || (blobStoreId != null && streamingProviders.contains(blobStoreId));
         }
 
         protected Map<String, String> parseUrlParameters(URL url) {
@@ -210,13 +566,145 @@ public class BlobUrlHandler extends AbstractURLStreamHandlerService {
         }
     }
 
-    private BlobStore createBlobStore(String providerOrApi, String identity, String credential, Iterable<? extends Module> modules, Properties props) {
-        ContextBuilder builder = ContextBuilder.newBuilder(providerOrApi).credentials(identity, credential).modules(modules).overrides(props);
-        BlobStoreContext context = builder.build(BlobStoreContext.class);
-        BlobStore blobStore = context.getBlobStore();
-        return blobStore;
+    /**
+     * A blob that is spooled to a temp file before its upload, with the lease that the upload uses.
+     * Either the stream claims it to upload it once it is closed, or the handler claims it to discard it.
+     */
+    private static class Spool {
+        private final FileOutputStream out;
+        private final File tmpBlob;
+        private final File tmpDir;
+        private final BlobStoreContextPool.Lease lease;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        private Spool(FileOutputStream out, File tmpBlob, File tmpDir, BlobStoreContextPool.Lease lease) {
+            this.out = out;
+            this.tmpBlob = tmpBlob;
+            this.tmpDir = tmpDir;
+            this.lease = lease;
+        }
+
+        private boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        private void discard() {
+            try {
+                Closeables.close(out, true);
+            } catch (IOException e) {
+                //Not thrown when swallowing.
+            }
+            tmpBlob.delete();
+            tmpDir.delete();
+            lease.close();
+        }
+    }
+
+    private static Set<String> splitProviders(String providers) {
+        return ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(providers));
     }
 
+    /**
+     * Sets the comma separated providers and apis that accept a payload of unknown length, so that uploads to them
+     * are streamed instead of spooled to a temp file.
+     * @param streamingProviders
+     */
+    public void setStreamingProviders(String streamingProviders) {
+        this.streamingProviders = splitProviders(streamingProviders != null ? streamingProviders : "");
+    }
+
+    public void setPartSize(int partSize) {
+        this.partSize = partSize;
+    }
+
+    public void setMaxParts(int maxParts) {
+        this.maxParts = maxParts;
+    }
+
+    public void setMultipartThreshold(long multipartThreshold) {
+        this.multipartThreshold = multipartThreshold;
+    }
+
+    private static Cache<String, BlobMetadata> createMetadataCache(long ttl) {
+        return CacheBuilder.newBuilder().maximumSize(1000).expireAfterWrite(ttl, TimeUnit.SECONDS).build();
+    }
+
+    /**
+     * Sets the time in seconds that the metadata of a blob is reused for.
+     * @param metadataTtl
+     */
+    public void setMetadataTtl(long metadataTtl) {
+        this.metadataCache = createMetadataCache(metadataTtl);
+    }
+
+    public void setUploadThreads(int uploadThreads) {
+        this.uploadThreads = uploadThreads;
+    }
+
+    public void setUploadQueueSize(int uploadQueueSize) {
+        this.uploadQueueSize = uploadQueueSize;
+    }
+
+    /**
+     * Sets the time in milliseconds a writer waits for an upload slot before it fails.
+     * @param uploadSlotTimeout
+     */
+    public void setUploadSlotTimeout(long uploadSlotTimeout) {
+        this.uploadSlotTimeout = uploadSlotTimeout;
+    }
+
+    /**
+     * Sets the time in milliseconds a streaming upload waits for more data before it is aborted.
+     * @param uploadIdleTimeout
+     */
+    public void setUploadIdleTimeout(long uploadIdleTimeout) {
+        this.uploadIdleTimeout = uploadIdleTimeout;
+    }
+
+    public void setContextPoolSize(long contextPoolSize) {
+        this.contextPoolSize = contextPoolSize;
+    }
+
+    /**
+     * Sets the time in milliseconds after which a pooled context that is not used is closed.
+     * @param contextIdleTime
+     */
+    public void setContextIdleTime(long contextIdleTime) {
+        this.contextIdleTime = contextIdleTime;
+    }
+
+    /**
+     * Sets the number of ranges that are fetched concurrently when a large blob is downloaded into the cache.
+     * A single thread turns ranged downloads off.
+     * @param rangedThreads
+     */
+    public void setRangedThreads(int rangedThreads) {
+        this.rangedThreads = rangedThreads;
+    }
+
+    public void setRangeSize(long rangeSize) {
+        this.rangeSize = rangeSize;
+    }
+
+    /**
+     * Sets the size in bytes above which blobs are downloaded as concurrent ranges.
+     * @param rangedThreshold
+     */
+    public void setRangedThreshold(long rangedThreshold) {
+        this.rangedThreshold = rangedThreshold;
+    }
+
+    public void setCacheEnabled(boolean cacheEnabled) {
+        this.cacheEnabled = cacheEnabled;
+    }
+
+    /**
+     * Sets the maximum size in bytes of the blobs that are cached under karaf.data/blobstore.
+     * @param cacheMaxSize
+     */
+    public void setCacheMaxSize(long cacheMaxSize) {
+        diskCache.setMaxSize(cacheMaxSize);
+    }
 
     public void setBlobStores(List<BlobStore> blobStores) {
         this.blobStores = blobStores;
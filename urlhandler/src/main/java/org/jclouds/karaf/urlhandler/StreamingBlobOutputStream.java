@@ -0,0 +1,250 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jclouds.karaf.urlhandler;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link OutputStream} that uploads a blob while it is written.
+ * The written bytes are cut into parts that are handed over a bounded queue to the payload of a putBlob
+ * that runs in the background, so at most (maxParts + 2) * partSize bytes are held in memory.
+ * Writers block while the queue is full. {@link #close()} waits for the upload and reports its failure.
+ * When no part arrives within the idle timeout (e.g. the stream has been abandoned without being closed),
+ * the upload is aborted, so that it gives its thread and its slot back.
+ */
+public class StreamingBlobOutputStream extends OutputStream {
+
+    private static final byte[] END = new byte[0];
+    private static final long POLL_INTERVAL = 100;
+
+    private final BlockingQueue<byte[]> parts;
+    private final int partSize;
+    private final long idleTimeout;
+    private final Future<Long> upload;
+
+    private byte[] buffer;
+    private int count;
+    private boolean closed;
+    private volatile boolean readerClosed;
+
+    /**
+     * Constructor
+     *
+     * @param blobStore     the blob store to upload to.
+     * @param lease         the lease of the blob store, which is released when the upload completes.
+     * @param containerName the container of the blob.
+     * @param blobName      the name of the blob.
+     * @param executor      the executor that runs the upload, in a slot acquired by the caller.
+     * @param partSize      the size in bytes of a part.
+     * @param maxParts      the number of parts that may wait for the upload.
+     * @param idleTimeout   the time in milliseconds the upload waits for the next part before it is aborted.
+     */
+    public StreamingBlobOutputStream(final BlobStore blobStore, final Closeable lease, final String containerName, final String blobName,
+                                     UploadExecutor executor, int partSize, int maxParts, long idleTimeout) {
+        this.partSize = partSize;
+        this.idleTimeout = idleTimeout;
+        this.parts = new ArrayBlockingQueue<byte[]>(maxParts);
+        this.buffer = new byte[partSize];
+        final PartInputStream input = new PartInputStream();
+        this.upload = executor.submit(containerName + "/" + blobName, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                try {
+                    Blob blob = blobStore.blobBuilder(blobName).payload(input).build();
+                    blobStore.putBlob(containerName, blob);
+                    return input.total;
+                } finally {
+                    input.close();
+                    lease.close();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        buffer[count++] = (byte) b;
+        if (count == partSize) {
+            flushPart();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int n = Math.min(len, partSize - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == partSize) {
+                flushPart();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (count > 0) {
+            byte[] part = new byte[count];
+            System.arraycopy(buffer, 0, part, 0, count);
+            enqueue(part);
+        }
+        buffer = null;
+        enqueue(END);
+        try {
+            upload.get();
+        } catch (InterruptedException e) {
+            upload.cancel(true);
+            throw new InterruptedIOException("Interrupted while waiting for the upload to complete.");
+        } catch (ExecutionException e) {
+            throw (IOException) new IOException("Error uploading blob").initCause(e.getCause());
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private void flushPart() throws IOException {
+        enqueue(buffer);
+        buffer = new byte[partSize];
+        count = 0;
+    }
+
+    /**
+     * Hands a part to the upload, waiting for room in the queue for as long as the upload still reads.
+     * @param part
+     * @throws IOException if the upload has failed or stopped reading.
+     */
+    private void enqueue(byte[] part) throws IOException {
+        try {
+            if (upload.isDone() || readerClosed) {
+                failed();
+            }
+            while (!parts.offer(part, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                if (upload.isDone() || readerClosed) {
+                    failed();
+                }
+            }
+        } catch (InterruptedException e) {
+            upload.cancel(true);
+            throw new InterruptedIOException("Interrupted while uploading blob.");
+        }
+    }
+
+    private void failed() throws IOException {
+        closed = true;
+        try {
+            upload.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw (IOException) new IOException("Error uploading blob").initCause(e.getCause());
+        }
+        throw new IOException("Upload stopped before the end of the blob.");
+    }
+
+    /**
+     * The payload of the upload, which reads the parts in the order they were written.
+     */
+    private class PartInputStream extends InputStream {
+
+        private byte[] part = new byte[0];
+        private int position;
+        private boolean end;
+        private long total;
+
+        @Override
+        public int read() throws IOException {
+            if (!nextPart()) {
+                return -1;
+            }
+            total++;
+            return part[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextPart()) {
+                return -1;
+            }
+            int n = Math.min(len, part.length - position);
+            System.arraycopy(part, position, b, off, n);
+            position += n;
+            total += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return end ? 0 : part.length - position;
+        }
+
+        @Override
+        public void close() {
+            readerClosed = true;
+            parts.clear();
+        }
+
+        private boolean nextPart() throws IOException {
+            while (!end && position == part.length) {
+                byte[] next;
+                try {
+                    next = parts.poll(idleTimeout, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for blob data.");
+                }
+                if (next == null) {
+                    throw new IOException("No blob data has been written for " + idleTimeout + " ms, aborting the upload.");
+                }
+                part = next;
+                position = 0;
+                end = part == END;
+            }
+            return !end;
+        }
+    }
+}
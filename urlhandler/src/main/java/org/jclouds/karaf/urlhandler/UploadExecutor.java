@@ -0,0 +1,194 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jclouds.karaf.urlhandler;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the uploads of blob: URLs on a bounded number of threads with a bounded queue.
+ * An upload first has to get a slot, which blocks while all threads are busy and the queue is full,
+ * so that a burst of writes slows down its writers instead of piling up threads and temp files.
+ * Streaming uploads get their slot when the stream is opened, spooled uploads when the stream is closed.
+ * The outcome of every upload is logged and counted.
+ */
+public class UploadExecutor implements UploadStatsMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UploadExecutor.class);
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore slots;
+    private final long slotTimeout;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong uploadTime = new AtomicLong();
+    private volatile String lastError;
+
+    /**
+     * Constructor
+     *
+     * @param threads     the number of uploads that run concurrently.
+     * @param queueSize   the number of uploads that may wait for a thread.
+     * @param slotTimeout the time in milliseconds a writer waits for a slot.
+     */
+    public UploadExecutor(int threads, int queueSize, long slotTimeout) {
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                new ThreadFactoryBuilder().setNameFormat("jclouds-blob-upload-%d").setDaemon(true).build());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.slots = new Semaphore(threads + queueSize, true);
+        this.slotTimeout = slotTimeout;
+    }
+
+    /**
+     * Waits for a free slot. Every slot that is acquired must be passed to {@link #submit(String, Callable)}
+     * or given back with {@link #release()}.
+     * @throws IOException if no slot became free in time.
+     */
+    public void acquire() throws IOException {
+        try {
+            if (!slots.tryAcquire(slotTimeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for a free upload slot, " + executor.getQueue().size() + " uploads are queued.");
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for a free upload slot.");
+        }
+    }
+
+    public void release() {
+        slots.release();
+    }
+
+    /**
+     * Runs an upload in an acquired slot, which is released when the upload completes.
+     * @param name   the name of the upload, used for reporting.
+     * @param upload the upload, which returns the number of bytes it uploaded.
+     * @return
+     */
+    public Future<Long> submit(final String name, final Callable<Long> upload) {
+        try {
+            return executor.submit(task(name, upload));
+        } catch (RejectedExecutionException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+    private Callable<Long> task(final String name, final Callable<Long> upload) {
+        return new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                long start = System.currentTimeMillis();
+                try {
+                    Long uploaded = upload.call();
+                    long duration = System.currentTimeMillis() - start;
+                    completed.incrementAndGet();
+                    bytes.addAndGet(uploaded);
+                    uploadTime.addAndGet(duration);
+                    LOGGER.debug("Uploaded {} ({} bytes) in {} ms.", new Object[]{name, uploaded, duration});
+                    return uploaded;
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    lastError = name + ": " + Throwables.getRootCause(e);
+                    LOGGER.error("Error uploading " + name + ".", e);
+                    throw e;
+                } finally {
+                    slots.release();
+                }
+            }
+        };
+    }
+
+    /**
+     * Stops accepting uploads and waits for the running and queued ones to complete.
+     * @param timeout the time in milliseconds to wait.
+     */
+    public void shutdown(long timeout) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Cancelling {} uploads that did not complete in time.", executor.shutdownNow().size() + executor.getActiveCount());
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public int getActiveUploads() {
+        return executor.getActiveCount();
+    }
+
+    @Override
+    public long getCompletedUploads() {
+        return completed.get();
+    }
+
+    @Override
+    public long getFailedUploads() {
+        return failed.get();
+    }
+
+    @Override
+    public long getBytesUploaded() {
+        return bytes.get();
+    }
+
+    @Override
+    public long getThroughput() {
+        long time = uploadTime.get();
+        return time > 0 ? bytes.get() * 1000 / time : 0;
+    }
+
+    @Override
+    public String getLastError() {
+        return lastError;
+    }
+
+    @Override
+    public void reset() {
+        completed.set(0);
+        failed.set(0);
+        bytes.set(0);
+        uploadTime.set(0);
+        lastError = null;
+    }
+}
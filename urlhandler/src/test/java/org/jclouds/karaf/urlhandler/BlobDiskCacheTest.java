@@ -0,0 +1,236 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jclouds.karaf.urlhandler;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.easymock.IAnswer;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.internal.BlobBuilderImpl;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlobDiskCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testUnmodifiedBlobIsServedFromTheCache() throws Exception {
+        BlobStore blobStore = createMock(BlobStore.class);
+        expect(blobStore.getBlob(eq("container"), eq("blob"), isA(GetOptions.class))).andAnswer(new BlobAnswer("hello", "e1"));
+        expect(blobStore.getBlob(eq("container"), eq("blob"), isA(GetOptions.class))).andAnswer(new BlobAnswer("hello", "e1"));
+        replay(blobStore);
+
+        BlobDiskCache cache = new BlobDiskCache(folder.getRoot(), 1024);
+        assertEquals("hello", read(cache, "key", "blob", blobStore, null));
+        assertEquals("hello", read(cache, "key", "blob", blobStore, null));
+        verify(blobStore);
+    }
+
+    @Test
+    public void testChangedBlobIsDownloadedAgain() throws Exception {
+        BlobStore blobStore = createMock(BlobStore.class);
+        expect(blobStore.getBlob(eq("container"), eq("blob"), isA(GetOptions.class))).andAnswer(new BlobAnswer("hello", "e1"));
+        expect(blobStore.getBlob(eq("container"), eq("blob"), isA(GetOptions.class))).andAnswer(new BlobAnswer("world", "e2"));
+        replay(blobStore);
+
+        BlobDiskCache cache = new BlobDiskCache(folder.getRoot(), 1024);
+        assertEquals("hello", read(cache, "key", "blob", blobStore, null));
+        assertEquals("world", read(cache, "key", "blob", blobStore, null));
+        verify(blobStore);
+    }
+
+    @Test
+    public void testKnownMetadataSkipsTheRequest() throws Exception {
+        BlobStore blobStore = createMock(BlobStore.class);
+        expect(blobStore.getBlob(eq("container"), eq("blob"), isA(GetOptions.class))).andAnswer(new BlobAnswer("hello", "e1"));
+        replay(blobStore);
+
+        BlobDiskCache cache = new BlobDiskCache(folder.getRoot(), 1024);
+        assertEquals("hello", read(cache, "key", "blob", blobStore, null));
+        assertEquals("hello", read(cache, "key", "blob", blobStore, blob("hello", "e1").getMetadata()));
+        //The cache finds the blob again after a restart.
+        cache = new BlobDiskCache(folder.getRoot(), 1024);
+        assertEquals("hello", read(cache, "key", "blob", blobStore, blob("hello", "e1").getMetadata()));
+        verify(blobStore);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedBlobIsEvicted() throws Exception {
+        BlobStore blobStore = createMock(BlobStore.class);
+        expect(blobStore.getBlob(eq("container"), eq("blob"), isA(GetOptions.class))).andAnswer(new BlobAnswer("first", "e1"));
+        expect(blobStore.getBlob(eq("container"), eq("other"), isA(GetOptions.class))).andAnswer(new BlobAnswer("other", "e2"));
+        expect(blobStore.getBlob(eq("container"), eq("blob"), isA(GetOptions.class))).andAnswer(new BlobAnswer("first", "e1") {
+            @Override
+            public Blob answer() throws Throwable {
+                //The evicted copy is no longer validated, but downloaded again.
+                assertNull(((GetOptions) getCurrentArguments()[2]).getIfNoneMatch());
+                return super.answer();
+            }
+        });
+        replay(blobStore);
+
+        BlobDiskCache cache = new BlobDiskCache(folder.getRoot(), 8);
+        assertEquals("first", read(cache, "key", "blob", blobStore, null));
+        assertEquals("other", read(cache, "other-key", "other", blobStore, null));
+        assertEquals("first", read(cache, "key", "blob", blobStore, null));
+        verify(blobStore);
+    }
+
+    @Test
+    public void testConcurrentReadsShareOneDownload() throws Exception {
+        final BlobStore blobStore = createMock(BlobStore.class);
+        makeThreadSafe(blobStore, true);
+        expect(blobStore.getBlob(eq("container"), eq("blob"), isA(GetOptions.class))).andAnswer(new BlobAnswer("hello", "e1") {
+            @Override
+            public Blob answer() throws Throwable {
+                Thread.sleep(200);
+                return super.answer();
+            }
+        });
+        replay(blobStore);
+
+        final BlobDiskCache cache = new BlobDiskCache(folder.getRoot(), 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> reads = new ArrayList<Future<String>>();
+            for (int i = 0; i < 4; i++) {
+                reads.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return read(cache, "key", "blob", blobStore, null);
+                    }
+                }));
+            }
+            for (Future<String> read : reads) {
+                assertEquals("hello", read.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        verify(blobStore);
+    }
+
+    @Test
+    public void testWaiterValidatesAfterAFailedDownload() throws Exception {
+        final BlobStore blobStore = createMock(BlobStore.class);
+        makeThreadSafe(blobStore, true);
+        expect(blobStore.getBlob(eq("container"), eq("blob"), isA(GetOptions.class))).andAnswer(new BlobAnswer("hello", "e1"));
+        expect(blobStore.getBlob(eq("container"), eq("blob"), isA(GetOptions.class))).andAnswer(new IAnswer<Blob>() {
+            @Override
+            public Blob answer() throws Throwable {
+                Thread.sleep(200);
+                throw new IllegalStateException("Download failed");
+            }
+        });
+        expect(blobStore.getBlob(eq("container"), eq("blob"), isA(GetOptions.class))).andAnswer(new BlobAnswer("world", "e2"));
+        replay(blobStore);
+
+        final BlobDiskCache cache = new BlobDiskCache(folder.getRoot(), 1024);
+        assertEquals("hello", read(cache, "key", "blob", blobStore, null));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<String>> reads = new ArrayList<Future<String>>();
+            for (int i = 0; i < 2; i++) {
+                reads.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return read(cache, "key", "blob", blobStore, null);
+                    }
+                }));
+            }
+            List<String> results = new ArrayList<String>();
+            for (Future<String> read : reads) {
+                try {
+                    results.add(read.get());
+                } catch (ExecutionException e) {
+                    results.add(e.getCause().getMessage());
+                }
+            }
+            //The stale copy is never served, the waiter validates it and gets the new one.
+            assertTrue(results.contains("world"));
+            assertTrue(results.contains("Download failed"));
+        } finally {
+            executor.shutdownNow();
+        }
+        verify(blobStore);
+    }
+
+    private static String read(BlobDiskCache cache, String key, String blobName, BlobStore blobStore, BlobMetadata metadata) throws IOException {
+        InputStream in = cache.get(key, blobStore, "container", blobName, metadata);
+        try {
+            return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Blob blob(String content, String etag) {
+        byte[] bytes = content.getBytes(Charsets.UTF_8);
+        Blob blob = new BlobBuilderImpl().name("blob").payload(ByteStreams.asByteSource(bytes)).contentLength(bytes.length).build();
+        blob.getMetadata().setETag(etag);
+        return blob;
+    }
+
+    /**
+     * Returns the blob, or a 304 if the request is conditional on the same ETag.
+     */
+    private static class BlobAnswer implements IAnswer<Blob> {
+        private final String content;
+        private final String etag;
+
+        private BlobAnswer(String content, String etag) {
+            this.content = content;
+            this.etag = etag;
+        }
+
+        @Override
+        public Blob answer() throws Throwable {
+            GetOptions options = (GetOptions) getCurrentArguments()[2];
+            if (etag.equals(options.getIfNoneMatch())) {
+                throw new HttpResponseException("Not modified", null, HttpResponse.builder().statusCode(304).build());
+            }
+            return blob(content, etag);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jclouds.karaf.urlhandler;
+
+import com.google.common.io.ByteStreams;
+import org.easymock.IAnswer;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.internal.BlobBuilderImpl;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StreamingBlobOutputStreamTest {
+
+    @Test
+    public void testUploadsTheWrittenBytes() throws Exception {
+        final ByteArrayOutputStream uploaded = new ByteArrayOutputStream();
+        BlobStore blobStore = createMock(BlobStore.class);
+        makeThreadSafe(blobStore, true);
+        expect(blobStore.blobBuilder("blob")).andReturn(new BlobBuilderImpl().name("blob"));
+        expect(blobStore.putBlob(eq("container"), isA(Blob.class))).andAnswer(new IAnswer<String>() {
+            @Override
+            public String answer() throws Throwable {
+                Blob blob = (Blob) getCurrentArguments()[1];
+                InputStream input = blob.getPayload().openStream();
+                ByteStreams.copy(input, uploaded);
+                return "etag";
+            }
+        });
+        Closeable lease = createMock(Closeable.class);
+        makeThreadSafe(lease, true);
+        lease.close();
+        expectLastCall();
+        replay(blobStore, lease);
+
+        UploadExecutor executor = new UploadExecutor(1, 0, 1000);
+        executor.acquire();
+        StreamingBlobOutputStream output = new StreamingBlobOutputStream(blobStore, lease, "container", "blob", executor, 16, 2, 5000);
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        output.write(data[0]);
+        output.write(data, 1, 40);
+        output.write(data, 41, data.length - 41);
+        output.close();
+
+        assertArrayEquals(data, uploaded.toByteArray());
+        assertEquals(1, executor.getCompletedUploads());
+        assertEquals(100, executor.getBytesUploaded());
+        verify(blobStore, lease);
+        executor.shutdown(1000);
+    }
+
+    @Test
+    public void testFailedUploadIsReportedToTheWriter() throws Exception {
+        BlobStore blobStore = createMock(BlobStore.class);
+        makeThreadSafe(blobStore, true);
+        expect(blobStore.blobBuilder("blob")).andReturn(new BlobBuilderImpl().name("blob"));
+        expect(blobStore.putBlob(eq("container"), isA(Blob.class))).andThrow(new IllegalStateException("Boom"));
+        Closeable lease = createNiceMock(Closeable.class);
+        replay(blobStore, lease);
+
+        UploadExecutor executor = new UploadExecutor(1, 0, 1000);
+        executor.acquire();
+        StreamingBlobOutputStream output = new StreamingBlobOutputStream(blobStore, lease, "container", "blob", executor, 16, 2, 5000);
+        byte[] part = new byte[16];
+        try {
+            for (int i = 0; i < 1000; i++) {
+                output.write(part);
+            }
+            output.close();
+            fail("The writer should have seen the failed upload");
+        } catch (IOException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(1, executor.getFailedUploads());
+        executor.shutdown(1000);
+    }
+
+    @Test
+    public void testAbandonedUploadFreesItsSlot() throws Exception {
+        BlobStore blobStore = createMock(BlobStore.class);
+        makeThreadSafe(blobStore, true);
+        expect(blobStore.blobBuilder("blob")).andReturn(new BlobBuilderImpl().name("blob"));
+        expect(blobStore.putBlob(eq("container"), isA(Blob.class))).andAnswer(new IAnswer<String>() {
+            @Override
+            public String answer() throws Throwable {
+                Blob blob = (Blob) getCurrentArguments()[1];
+                ByteStreams.copy(blob.getPayload().openStream(), ByteStreams.nullOutputStream());
+                return "etag";
+            }
+        });
+        Closeable lease = createNiceMock(Closeable.class);
+        replay(blobStore, lease);
+
+        UploadExecutor executor = new UploadExecutor(1, 0, 5000);
+        executor.acquire();
+        StreamingBlobOutputStream output = new StreamingBlobOutputStream(blobStore, lease, "container", "blob", executor, 16, 2, 200);
+        byte[] part = new byte[40];
+        Arrays.fill(part, (byte) 1);
+        output.write(part);
+
+        //The only slot is given back once the upload gives up waiting for more data.
+        executor.acquire();
+        executor.release();
+        assertEquals(1, executor.getFailedUploads());
+        try {
+            output.write(part);
+            output.close();
+            fail("The writer should have seen the aborted upload");
+        } catch (IOException ex) {
+            //expected
+        }
+        executor.shutdown(1000);
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jclouds.karaf.urlhandler;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UploadExecutorTest {
+
+    @Test
+    public void testWritersWaitForAFreeSlot() throws Exception {
+        UploadExecutor executor = new UploadExecutor(1, 1, 100);
+        executor.acquire();
+        executor.acquire();
+        try {
+            executor.acquire();
+            fail("All the slots should be taken");
+        } catch (IOException ex) {
+            //expected
+        }
+        executor.release();
+        executor.acquire();
+        executor.release();
+        executor.release();
+        executor.shutdown(1000);
+    }
+
+    @Test
+    public void testUploadReleasesItsSlot() throws Exception {
+        UploadExecutor executor = new UploadExecutor(1, 0, 5000);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.acquire();
+        Future<Long> upload = executor.submit("container/blob", new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                started.countDown();
+                release.await();
+                return 10L;
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(1, executor.getActiveUploads());
+        release.countDown();
+        assertEquals(Long.valueOf(10), upload.get(5, TimeUnit.SECONDS));
+        executor.acquire();
+        executor.release();
+        assertEquals(1, executor.getCompletedUploads());
+        assertEquals(10, executor.getBytesUploaded());
+        executor.shutdown(1000);
+    }
+
+    @Test
+    public void testFailedUploadIsCounted() throws Exception {
+        UploadExecutor executor = new UploadExecutor(1, 0, 5000);
+        executor.acquire();
+        Future<Long> upload = executor.submit("container/blob", new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                throw new IOException("Boom");
+            }
+        });
+        try {
+            upload.get(5, TimeUnit.SECONDS);
+            fail("The upload should have failed");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IOException);
+        }
+        executor.acquire();
+        executor.release();
+        assertEquals(1, executor.getFailedUploads());
+        assertEquals("container/blob: java.io.IOException: Boom", executor.getLastError());
+
+        executor.reset();
+        assertEquals(0, executor.getFailedUploads());
+        assertNull(executor.getLastError());
+        executor.shutdown(1000);
+    }
+
+    @Test
+    public void testRejectedUploadReleasesItsSlot() throws Exception {
+        UploadExecutor executor = new UploadExecutor(1, 0, 100);
+        executor.shutdown(1000);
+        executor.acquire();
+        try {
+            executor.submit("container/blob", new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return 0L;
+                }
+            });
+            fail("The executor has been shut down");
+        } catch (RejectedExecutionException ex) {
+            //expected
+        }
+        executor.acquire();
+        executor.release();
+    }
+}
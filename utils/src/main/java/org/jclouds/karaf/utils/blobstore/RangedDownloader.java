@@ -0,0 +1,265 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jclouds.karaf.utils.blobstore;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads a blob as byte ranges that are fetched concurrently and written in place into the target file.
+ * The completed ranges are recorded in a journal next to the file, once their data has been forced to disk,
+ * so that an interrupted download resumes with the ranges that are missing, as long as the blob has not changed
+ * in the meantime. Each range is fetched on the condition that the blob still has the same ETag (or else that it
+ * has not been modified since), so that a download never mixes the ranges of two versions of the blob.
+ */
+public class RangedDownloader {
+
+    public static final String JOURNAL_SUFFIX = ".ranges";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int threads;
+    private final long rangeSize;
+
+    /**
+     * Constructor
+     *
+     * @param threads   the number of ranges that are fetched concurrently.
+     * @param rangeSize the size in bytes of a range.
+     */
+    public RangedDownloader(int threads, long rangeSize) {
+        this.threads = threads;
+        this.rangeSize = rangeSize;
+    }
+
+    /**
+     * Returns the length of the blob, if the metadata has one.
+     * @param metadata
+     * @return the length or -1 if it is unknown.
+     */
+    public static long lengthOf(BlobMetadata metadata) {
+        if (metadata == null || metadata.getContentMetadata() == null || metadata.getContentMetadata().getContentLength() == null) {
+            return -1;
+        }
+        return metadata.getContentMetadata().getContentLength();
+    }
+
+    /**
+     * Downloads the blob into the file.
+     * @param blobStore
+     * @param containerName
+     * @param blobName
+     * @param metadata      the metadata of the blob, which must have its length.
+     * @param file          the file to write, which is resumed if a previous download of the same blob was interrupted.
+     * @throws IOException if the download failed, the blob changed or the file does not have the length of the blob.
+     */
+    public void download(final BlobStore blobStore, final String containerName, final String blobName, final BlobMetadata metadata, File file) throws IOException {
+        final long length = lengthOf(metadata);
+        if (length < 0) {
+            throw new IOException("The length of blob " + blobName + " is unknown.");
+        }
+        int ranges = (int) ((length + rangeSize - 1) / rangeSize);
+        File journal = new File(file.getPath() + JOURNAL_SUFFIX);
+        String header = header(metadata, length);
+        //Without an ETag or a last modified date, there is no telling whether the blob has changed since.
+        boolean resumable = metadata.getETag() != null || metadata.getLastModified() != null;
+        BitSet completed = resumable ? readJournal(journal, header, file) : new BitSet();
+        boolean resume = journal.isFile() && resumable;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        final Writer journalWriter = new OutputStreamWriter(new FileOutputStream(journal, resume), Charsets.UTF_8);
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("jclouds-blob-download-%d").setDaemon(true).build());
+        try {
+            raf.setLength(length);
+            if (!resume) {
+                journalWriter.write(header + "\n");
+                journalWriter.flush();
+            }
+            final FileChannel channel = raf.getChannel();
+            ExecutorCompletionService<Integer> completion = new ExecutorCompletionService<Integer>(executor);
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int i = completed.nextClearBit(0); i < ranges; i = completed.nextClearBit(i + 1)) {
+                final int range = i;
+                futures.add(completion.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        long start = range * rangeSize;
+                        long end = Math.min(length, start + rangeSize) - 1;
+                        fetch(blobStore, containerName, blobName, optionsFor(metadata, start, end), start, end, channel);
+                        //The range is only recorded once its data is on disk.
+                        channel.force(false);
+                        synchronized (journalWriter) {
+                            journalWriter.write(range + "\n");
+                            journalWriter.flush();
+                        }
+                        return range;
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                completed.set(completion.take().get());
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while downloading blob " + blobName + ".");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw (IOException) new IOException("Error downloading blob " + blobName + ".").initCause(e.getCause());
+        } finally {
+            executor.shutdownNow();
+            Closeables.close(journalWriter, true);
+            Closeables.close(raf, true);
+        }
+        if (completed.nextClearBit(0) < ranges || file.length() != length) {
+            throw new IOException("Download of blob " + blobName + " is incomplete, " + file.length() + " of " + length + " bytes.");
+        }
+        journal.delete();
+    }
+
+    /**
+     * Returns the options that get a range only if the blob is still the one that the metadata describes.
+     * @param metadata
+     * @param start
+     * @param end
+     * @return
+     */
+    private static GetOptions optionsFor(BlobMetadata metadata, long start, long end) {
+        GetOptions options = GetOptions.Builder.range(start, end);
+        if (metadata.getETag() != null) {
+            options.ifETagMatches(metadata.getETag());
+        } else if (metadata.getLastModified() != null) {
+            options.ifUnmodifiedSince(metadata.getLastModified());
+        }
+        return options;
+    }
+
+    /**
+     * Fetches a range of the blob and writes it at its position in the file.
+     */
+    private static void fetch(BlobStore blobStore, String containerName, String blobName, GetOptions options,
+                              long start, long end, FileChannel channel) throws IOException {
+        Blob blob;
+        try {
+            blob = blobStore.getBlob(containerName, blobName, options);
+        } catch (RuntimeException e) {
+            if (hasStatus(e, 412)) {
+                throw (IOException) new IOException("Blob " + blobName + " has changed during the download.").initCause(e);
+            }
+            throw e;
+        }
+        if (blob == null) {
+            throw new IOException("Blob " + blobName + " does not exists");
+        }
+        InputStream in = blob.getPayload().openStream();
+        try {
+            byte[] bytes = new byte[BUFFER_SIZE];
+            long position = start;
+            int read;
+            while (position <= end && (read = in.read(bytes, 0, (int) Math.min(bytes.length, end - position + 1))) != -1) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, read);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+            if (position != end + 1) {
+                throw new IOException("Range " + start + "-" + end + " of blob " + blobName + " ended at " + position + ".");
+            }
+        } finally {
+            Closeables.close(in, true);
+        }
+    }
+
+    private static boolean hasStatus(Exception e, int status) {
+        for (Throwable cause : Throwables.getCausalChain(e)) {
+            if (cause instanceof HttpResponseException) {
+                HttpResponse response = ((HttpResponseException) cause).getResponse();
+                return response != null && response.getStatusCode() == status;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the ranges that a previous download of the same blob has completed.
+     * The journal is discarded if it belongs to another version of the blob or another range size.
+     * Only the records that end with a newline count, as the last one may have been cut short by the interruption.
+     */
+    private BitSet readJournal(File journal, String header, File file) throws IOException {
+        BitSet completed = new BitSet();
+        if (!journal.isFile() || !file.isFile()) {
+            journal.delete();
+            return completed;
+        }
+        String content = Files.toString(journal, Charsets.UTF_8);
+        List<String> records = Lists.newArrayList(Splitter.on('\n').split(content));
+        //The last element is what follows the last newline, which is either empty or an unterminated record.
+        records.remove(records.size() - 1);
+        if (records.isEmpty() || !records.get(0).equals(header)) {
+            journal.delete();
+            return completed;
+        }
+        for (String record : records.subList(1, records.size())) {
+            try {
+                completed.set(Integer.parseInt(record.trim()));
+            } catch (NumberFormatException e) {
+                //Not a range, the journal has been tampered with.
+            }
+        }
+        return completed;
+    }
+
+    private String header(BlobMetadata metadata, long length) {
+        long lastModified = metadata.getLastModified() != null ? metadata.getLastModified().getTime() : 0;
+        return metadata.getETag() + "|" + lastModified + "|" + length + "|" + rangeSize;
+    }
+}
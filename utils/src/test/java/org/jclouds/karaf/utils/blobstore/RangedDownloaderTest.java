@@ -0,0 +1,180 @@
+/**
+ * Licensed to jclouds, Inc. (jclouds) under one or more
+ * contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  jclouds licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jclouds.karaf.utils.blobstore;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.easymock.IAnswer;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.MutableBlobMetadata;
+import org.jclouds.blobstore.domain.internal.BlobBuilderImpl;
+import org.jclouds.blobstore.domain.internal.MutableBlobMetadataImpl;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RangedDownloaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] data = new byte[1000];
+    private MutableBlobMetadata metadata;
+    private File file;
+    private File journal;
+
+    @Before
+    public void setUp() {
+        new Random(1).nextBytes(data);
+        metadata = new MutableBlobMetadataImpl();
+        metadata.setName("blob");
+        metadata.setETag("e1");
+        metadata.getContentMetadata().setContentLength((long) data.length);
+        file = new File(folder.getRoot(), "blob.part");
+        journal = new File(file.getPath() + RangedDownloader.JOURNAL_SUFFIX);
+    }
+
+    @Test
+    public void testDownload() throws Exception {
+        RangeAnswer answer = new RangeAnswer("e1");
+        RangedDownloader downloader = new RangedDownloader(4, 100);
+        downloader.download(blobStore(answer), "container", "blob", metadata, file);
+        assertArrayEquals(data, Files.toByteArray(file));
+        assertEquals(10, answer.requests.get());
+        assertFalse(journal.exists());
+    }
+
+    @Test
+    public void testInterruptedDownloadIsResumed() throws Exception {
+        RangeAnswer answer = new RangeAnswer("e1");
+        answer.failFrom = 3;
+        RangedDownloader downloader = new RangedDownloader(1, 100);
+        try {
+            downloader.download(blobStore(answer), "container", "blob", metadata, file);
+            fail("The download should have failed");
+        } catch (IOException ex) {
+            //expected
+        }
+        assertTrue(journal.isFile());
+        //A record that was cut short doesn't count.
+        Files.append("9", journal, Charsets.UTF_8);
+
+        RangeAnswer resumed = new RangeAnswer("e1");
+        downloader.download(blobStore(resumed), "container", "blob", metadata, file);
+        assertArrayEquals(data, Files.toByteArray(file));
+        assertEquals(7, resumed.requests.get());
+        assertFalse(journal.exists());
+    }
+
+    @Test
+    public void testJournalOfAnotherVersionIsDiscarded() throws Exception {
+        RangeAnswer answer = new RangeAnswer("e1");
+        answer.failFrom = 5;
+        RangedDownloader downloader = new RangedDownloader(1, 100);
+        try {
+            downloader.download(blobStore(answer), "container", "blob", metadata, file);
+            fail("The download should have failed");
+        } catch (IOException ex) {
+            //expected
+        }
+
+        metadata.setETag("e2");
+        RangeAnswer changed = new RangeAnswer("e2");
+        downloader.download(blobStore(changed), "container", "blob", metadata, file);
+        assertArrayEquals(data, Files.toByteArray(file));
+        assertEquals(10, changed.requests.get());
+    }
+
+    @Test
+    public void testBlobChangedDuringTheDownload() throws Exception {
+        RangeAnswer answer = new RangeAnswer("e2");
+        RangedDownloader downloader = new RangedDownloader(2, 100);
+        try {
+            downloader.download(blobStore(answer), "container", "blob", metadata, file);
+            fail("The download should have failed");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("has changed"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownLength() throws Exception {
+        metadata.getContentMetadata().setContentLength(null);
+        new RangedDownloader(1, 100).download(createMock(BlobStore.class), "container", "blob", metadata, file);
+    }
+
+    private BlobStore blobStore(RangeAnswer answer) {
+        BlobStore blobStore = createMock(BlobStore.class);
+        makeThreadSafe(blobStore, true);
+        expect(blobStore.getBlob(eq("container"), eq("blob"), isA(GetOptions.class))).andAnswer(answer).anyTimes();
+        replay(blobStore);
+        return blobStore;
+    }
+
+    /**
+     * Returns the requested range of the data, if the blob still has the expected ETag and the range comes before failFrom.
+     */
+    private class RangeAnswer implements IAnswer<Blob> {
+        private final String etag;
+        private final AtomicInteger requests = new AtomicInteger();
+        private volatile int failFrom = Integer.MAX_VALUE;
+
+        private RangeAnswer(String etag) {
+            this.etag = etag;
+        }
+
+        @Override
+        public Blob answer() throws Throwable {
+            requests.incrementAndGet();
+            GetOptions options = (GetOptions) getCurrentArguments()[2];
+            if (options.getIfMatch() != null && !options.getIfMatch().replace("\"", "").equals(etag)) {
+                throw new HttpResponseException("Precondition failed", null, HttpResponse.builder().statusCode(412).build());
+            }
+            String[] range = options.getRanges().get(0).split("-");
+            int start = Integer.parseInt(range[0]);
+            int end = Integer.parseInt(range[1]);
+            if (start / 100 >= failFrom) {
+                throw new IllegalStateException("Boom");
+            }
+            byte[] bytes = Arrays.copyOfRange(data, start, end + 1);
+            return new BlobBuilderImpl().name("blob").payload(ByteStreams.asByteSource(bytes)).contentLength(bytes.length).build();
+        }
+    }
+}